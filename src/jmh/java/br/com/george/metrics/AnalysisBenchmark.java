@@ -0,0 +1,64 @@
+package br.com.george.metrics;
+
+import org.jacoco.core.analysis.Analyzer;
+import org.jacoco.core.analysis.IClassCoverage;
+import org.jacoco.core.analysis.ICoverageVisitor;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Analysis throughput in classes per second, including the reduction to
+ * {@link ClassMetrics}: JaCoCo's analyzer and the {@link AsmAnalyzer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnalysisBenchmark {
+
+	static final int CLASSES = 1000;
+
+	private List<byte[]> classes;
+
+	@Setup
+	public void setup() {
+		classes = SyntheticCorpus.generate(CLASSES, 10);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CLASSES)
+	public void analyze(final Blackhole bh) throws IOException {
+		final Analyzer analyzer = new Analyzer(new ExecutionDataStore(), new ICoverageVisitor() {
+			public void visitCoverage(final IClassCoverage coverage) {
+				bh.consume(ClassMetrics.of(null, null, coverage));
+			}
+		});
+		for (int i = 0; i < classes.size(); i++) {
+			analyzer.analyzeClass(classes.get(i), SyntheticCorpus.name(i));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CLASSES)
+	public void analyzeAsm(final Blackhole bh) throws IOException {
+		final AsmAnalyzer analyzer = new AsmAnalyzer();
+		for (int i = 0; i < classes.size(); i++) {
+			bh.consume(analyzer.analyze(null, SyntheticCorpus.name(i), classes.get(i)));
+		}
+	}
+
+}
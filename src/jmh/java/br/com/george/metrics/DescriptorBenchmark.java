@@ -0,0 +1,67 @@
+package br.com.george.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Method descriptor parsing, compared with the regular expressions the
+ * parameter count used to be computed with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DescriptorBenchmark {
+
+	private static final String[] DESCRIPTORS = { "()V", "(I)I", "(Ljava/lang/String;)Z",
+			"([BII)Ljava/lang/String;", "(JD[J[DLjava/lang/String;[[Ljava/lang/Object;BZ)[I",
+			"(Ljava/util/Map;Ljava/util/List;Ljava/lang/Object;)Ljava/util/Set;", "([[I)J",
+			"(Lorg/jacoco/core/analysis/IClassCoverage;)V" };
+
+	private static Pattern allParamsPattern = Pattern.compile("(\\(.*?\\))");
+	private static Pattern paramsPattern = Pattern.compile("(\\[?)(C|Z|S|I|J|F|D|(:?L[^;]+;))");
+
+	@Benchmark
+	@OperationsPerInvocation(8)
+	public void scan(final Blackhole bh) {
+		for (String desc : DESCRIPTORS) {
+			bh.consume(MethodDescriptor.scan(desc));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(8)
+	public void intern(final Blackhole bh) {
+		for (String desc : DESCRIPTORS) {
+			bh.consume(MethodDescriptor.intern(desc).paramCount);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(8)
+	public void regex(final Blackhole bh) {
+		for (String desc : DESCRIPTORS) {
+			Matcher m = allParamsPattern.matcher(desc);
+			m.find();
+			Matcher mParam = paramsPattern.matcher(m.group(1));
+			int count = 0;
+			while (mParam.find()) {
+				count++;
+			}
+			bh.consume(count);
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+package br.com.george.metrics;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end {@link Start#execute} over generated class trees of different
+ * sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecuteBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int classes;
+
+	@Param({ "false", "true" })
+	public boolean stream;
+
+	private File dir;
+	private File db;
+	private Options options;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("metrics-bench").toFile();
+		SyntheticCorpus.write(new File(dir, "classes"), classes, 10);
+		db = new File(dir, "metrics.db");
+		options = Options.parse(stream ? new String[] { "--stream" } : new String[0]);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Benchmark
+	public void execute() throws Exception {
+		new Start(new PrintStream(new NullOutputStream())).execute(new File(dir, "classes").getAbsolutePath(),
+				db.getAbsolutePath(), options);
+	}
+
+}
@@ -0,0 +1,50 @@
+package br.com.george.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Line counting of <code>--sources</code> over a synthetic source of about
+ * 64 KiB mixing code, comments, strings and blank lines; the score times the
+ * size is the lexer throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SourceLinesBenchmark {
+
+	private static final String MEMBER = "\t/**\n\t * Returns the value of the field, never <code>null</code>.\n\t */\n"
+			+ "\tString value(final int i) {\n\t\tif (i > 0) { // positive\n\t\t\treturn \"/* not a comment */\" + i;\n"
+			+ "\t\t}\n\n\t\treturn String.valueOf('\\'') + \"\\\"\";\n\t}\n\n";
+
+	private final SourceLines.Lexer lexer = new SourceLines.Lexer();
+	private ByteBuffer source;
+
+	@Setup
+	public void setup() {
+		final StringBuilder sb = new StringBuilder("package com.acme;\n\npublic class Generated {\n\n");
+		while (sb.length() < 64 * 1024) {
+			sb.append(MEMBER);
+		}
+		sb.append("}\n");
+		source = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Benchmark
+	public int[] count() {
+		return lexer.count(source);
+	}
+
+}
@@ -0,0 +1,98 @@
+package br.com.george.metrics;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * SQLite write throughput in rows per second, for auto-committed single
+ * statements (how every row used to be written) and for
+ * {@link SqliteWriter} batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SqliteWriteBenchmark {
+
+	static final int ROWS = 2000;
+
+	private static String classSql = "INSERT INTO class_metrics (package,file,class,metric,value) VALUES (?,?,?,?,?) ";
+
+	private File db;
+	private Connection conn;
+
+	@Setup(Level.Invocation)
+	public void open() throws Exception {
+		Class.forName("org.sqlite.JDBC");
+		db = File.createTempFile("metrics-bench", ".db");
+		db.delete();
+		conn = DriverManager.getConnection("jdbc:sqlite:" + db.getAbsolutePath());
+		try (Statement st = conn.createStatement();
+				InputStream is = getClass().getClassLoader().getResourceAsStream("script.sql")) {
+			for (String line : IOUtils.readLines(is, "UTF-8")) {
+				st.execute(line);
+			}
+		}
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() throws SQLException {
+		conn.close();
+		db.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void perRow() throws SQLException {
+		for (int i = 0; i < ROWS; i++) {
+			try (PreparedStatement pstmt = conn.prepareStatement(classSql)) {
+				pstmt.setString(1, "p");
+				pstmt.setString(2, "F.java");
+				pstmt.setString(3, "C" + i);
+				pstmt.setString(4, MetricsRecorder.Cyclomatic);
+				pstmt.setDouble(5, i);
+				pstmt.executeUpdate();
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Batch {
+
+		@Param({ "100", "1000" })
+		public int size;
+
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void batched(final Batch batch) throws SQLException {
+		try (SqliteWriter writer = new SqliteWriter(conn, batch.size, 0)) {
+			for (int i = 0; i < ROWS; i++) {
+				writer.insertClass("p", "F.java", "C" + i, MetricsRecorder.Cyclomatic, i);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+package br.com.george.metrics;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates class files for the benchmarks. Every class has a source file
+ * name, line numbers and methods with branches and a switch, so all metrics
+ * of the output have non trivial values.
+ */
+final class SyntheticCorpus {
+
+	static final int PACKAGES = 20;
+
+	private SyntheticCorpus() {
+	}
+
+	/**
+	 * @return the bytes of <code>classes</code> generated classes with
+	 *         <code>methods</code> methods each
+	 */
+	static List<byte[]> generate(final int classes, final int methods) {
+		final List<byte[]> result = new ArrayList<byte[]>(classes);
+		for (int i = 0; i < classes; i++) {
+			result.add(generateClass(name(i), methods));
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a generated corpus below the given directory.
+	 *
+	 * @return the directory
+	 */
+	static File write(final File dir, final int classes, final int methods) throws IOException {
+		for (int i = 0; i < classes; i++) {
+			final File file = new File(dir, name(i) + ".class");
+			file.getParentFile().mkdirs();
+			Files.write(file.toPath(), generateClass(name(i), methods));
+		}
+		return dir;
+	}
+
+	static String name(final int i) {
+		return "synthetic/p" + i % PACKAGES + "/C" + i;
+	}
+
+	private static byte[] generateClass(final String name, final int methods) {
+		final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+		cw.visitSource(name.substring(name.lastIndexOf('/') + 1) + ".java", null);
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		line(mv, 1);
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		for (int m = 0; m < methods; m++) {
+			mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "m" + m, "(I[BLjava/lang/String;)I", null, null);
+			mv.visitCode();
+			int line = 10 + m * 10;
+			line(mv, line++);
+			final Label negative = new Label();
+			mv.visitVarInsn(Opcodes.ILOAD, 1);
+			mv.visitJumpInsn(Opcodes.IFLE, negative);
+			line(mv, line++);
+			mv.visitVarInsn(Opcodes.ILOAD, 1);
+			mv.visitInsn(Opcodes.ICONST_1);
+			mv.visitInsn(Opcodes.IADD);
+			mv.visitInsn(Opcodes.IRETURN);
+			mv.visitLabel(negative);
+			line(mv, line++);
+			final Label[] cases = { new Label(), new Label(), new Label() };
+			final Label other = new Label();
+			mv.visitVarInsn(Opcodes.ILOAD, 1);
+			mv.visitInsn(Opcodes.INEG);
+			mv.visitTableSwitchInsn(0, cases.length - 1, other, cases);
+			for (int c = 0; c < cases.length; c++) {
+				mv.visitLabel(cases[c]);
+				line(mv, line++);
+				mv.visitIntInsn(Opcodes.BIPUSH, c * m);
+				mv.visitInsn(Opcodes.IRETURN);
+			}
+			mv.visitLabel(other);
+			line(mv, line);
+			mv.visitInsn(Opcodes.ICONST_M1);
+			mv.visitInsn(Opcodes.IRETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static void line(final MethodVisitor mv, final int line) {
+		final Label label = new Label();
+		mv.visitLabel(label);
+		mv.visitLineNumber(line, label);
+	}
+
+}
@@ -0,0 +1,447 @@
+package br.com.george.metrics;
+
+import org.jacoco.core.internal.analysis.filter.Filters;
+import org.jacoco.core.internal.analysis.filter.IFilter;
+import org.jacoco.core.internal.analysis.filter.IFilterContext;
+import org.jacoco.core.internal.analysis.filter.IFilterOutput;
+import org.jacoco.core.internal.data.CRC64;
+import org.jacoco.core.internal.instr.InstrSupport;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.JSRInlinerAdapter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Computes the metrics of a class straight from its bytecode, the engine of
+ * <code>--engine asm</code>. The class is read once; only the instruction
+ * list of one method at a time is kept, to run JaCoCo's filters on it.
+ * <p>
+ * The values are those of JaCoCo's {@link org.jacoco.core.analysis.Analyzer}
+ * without its coverage model: an instruction has a branch to the next one
+ * unless a label not reached by fall through comes in between, plus one for
+ * a jump, a return or a throw, and one per distinct switch target. The
+ * complexity of a method is 1 plus, for each instruction with n &gt; 1
+ * branches, n - 1. Instructions ignored by the filters count for nothing,
+ * merged ones only once, and a method left without instructions is not a
+ * method. Synthetic classes are skipped, as JaCoCo does.
+ * <p>
+ * Not thread safe, each worker owns an instance.
+ */
+final class AsmAnalyzer {
+
+	private final IFilter filter = Filters.all();
+
+	/**
+	 * @param location
+	 *            directory or archive the class was read from
+	 * @param path
+	 *            full name of the class file, used in messages
+	 * @return the metrics of the class, <code>null</code> for a synthetic
+	 *         class
+	 * @throws IOException
+	 *             if the class can't be parsed
+	 */
+	ClassMetrics analyze(final String location, final String path, final byte[] bytes) throws IOException {
+		try {
+			final ClassReader reader = InstrSupport.classReaderFor(bytes);
+			if ((reader.getAccess() & Opcodes.ACC_SYNTHETIC) != 0) {
+				return null;
+			}
+			final MetricsClassVisitor visitor = new MetricsClassVisitor();
+			reader.accept(visitor, 0);
+			return visitor.result(location, path, CRC64.classId(bytes));
+		} catch (RuntimeException e) {
+			throw new IOException(String.format("Error while analyzing %s.", path), e);
+		}
+	}
+
+	/**
+	 * Collects the values of one class and provides the class information
+	 * the filters ask for.
+	 */
+	private final class MetricsClassVisitor extends ClassVisitor implements IFilterContext {
+
+		private String name;
+		private String superName;
+		private String sourceFileName;
+		private String sourceDebugExtension;
+		private final Set<String> annotations = new HashSet<String>();
+		private final List<ClassMetrics.Method> methods = new ArrayList<ClassMetrics.Method>();
+		/** every line with code, across the methods */
+		private final LineSet lines = new LineSet();
+		/** classes referenced by the instructions */
+		private final Set<String> coupled = new HashSet<String>();
+		private int complexity;
+		private int instructions;
+
+		MetricsClassVisitor() {
+			super(Opcodes.ASM7);
+		}
+
+		@Override
+		public void visit(final int version, final int access, final String name, final String signature,
+				final String superName, final String[] interfaces) {
+			this.name = name;
+			this.superName = superName;
+		}
+
+		@Override
+		public void visitSource(final String source, final String debug) {
+			this.sourceFileName = source;
+			this.sourceDebugExtension = debug;
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(final String descriptor, final boolean visible) {
+			annotations.add(descriptor);
+			return null;
+		}
+
+		@Override
+		public FieldVisitor visitField(final int access, final String name, final String descriptor,
+				final String signature, final Object value) {
+			InstrSupport.assertNotInstrumented(name, this.name);
+			return null;
+		}
+
+		@Override
+		public MethodVisitor visitMethod(final int access, final String name, final String descriptor,
+				final String signature, final String[] exceptions) {
+			InstrSupport.assertNotInstrumented(name, this.name);
+			// the subroutines of old class files are inlined, like JaCoCo does
+			return new JSRInlinerAdapter(Opcodes.ASM7, null, access, name, descriptor, signature, exceptions) {
+
+				@Override
+				public void visitLineNumber(final int line, final Label start) {
+					// line numbers of labels not seen yet are invalid
+					if (start.info != null) {
+						super.visitLineNumber(line, start);
+					}
+				}
+
+				@Override
+				public void visitEnd() {
+					super.visitEnd();
+					method(this);
+				}
+
+			};
+		}
+
+		private void method(final MethodNode node) {
+			final InsnList insns = node.instructions;
+			final int n = insns.size();
+			if (n == 0) {
+				return;
+			}
+			final int[] branches = new int[n];
+			final int[] lineOf = new int[n];
+			final boolean[] ignored = new boolean[n];
+			int line = -1;
+			// previous instruction, -1 once a label not reached by fall through is passed
+			int previous = -1;
+			boolean successor = false;
+			int i = 0;
+			for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext(), i++) {
+				switch (insn.getType()) {
+				case AbstractInsnNode.LABEL:
+					if (!successor) {
+						previous = -1;
+					}
+					ignored[i] = true;
+					continue;
+				case AbstractInsnNode.LINE:
+					line = ((LineNumberNode) insn).line;
+					ignored[i] = true;
+					continue;
+				case AbstractInsnNode.FRAME:
+					ignored[i] = true;
+					continue;
+				default:
+					break;
+				}
+				if (previous >= 0) {
+					branches[previous]++;
+				}
+				lineOf[i] = line;
+				branches[i] += targets(insn);
+				successor = fallsThrough(insn.getOpcode());
+				previous = i;
+				couple(insn);
+			}
+
+			final Output output = new Output(insns, ignored);
+			filter.filter(node, this, output);
+			output.apply(branches);
+
+			int methodComplexity = 1;
+			int methodInstructions = 0;
+			final LineSet methodLines = new LineSet();
+			for (int j = 0; j < n; j++) {
+				if (ignored[j]) {
+					continue;
+				}
+				methodInstructions++;
+				if (branches[j] > 1) {
+					methodComplexity += branches[j] - 1;
+				}
+				if (lineOf[j] != -1) {
+					methodLines.add(lineOf[j]);
+					lines.add(lineOf[j]);
+				}
+			}
+			if (methodInstructions == 0) {
+				return;
+			}
+			complexity += methodComplexity;
+			instructions += methodInstructions;
+			methods.add(new ClassMetrics.Method(node.name, MethodDescriptor.intern(node.desc), methodComplexity,
+					methodLines.size(), null));
+		}
+
+		/**
+		 * Remembers the classes an instruction refers to, for the fan-out.
+		 */
+		private void couple(final AbstractInsnNode insn) {
+			switch (insn.getType()) {
+			case AbstractInsnNode.FIELD_INSN:
+				couple(Type.getObjectType(((FieldInsnNode) insn).owner));
+				break;
+			case AbstractInsnNode.METHOD_INSN:
+				couple(Type.getObjectType(((MethodInsnNode) insn).owner));
+				break;
+			case AbstractInsnNode.TYPE_INSN:
+				couple(Type.getObjectType(((TypeInsnNode) insn).desc));
+				break;
+			case AbstractInsnNode.MULTIANEWARRAY_INSN:
+				couple(Type.getType(((MultiANewArrayInsnNode) insn).desc));
+				break;
+			case AbstractInsnNode.LDC_INSN:
+				if (((LdcInsnNode) insn).cst instanceof Type) {
+					couple((Type) ((LdcInsnNode) insn).cst);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		/**
+		 * Counts a class other than this one, or the element class of an
+		 * array.
+		 */
+		private void couple(final Type type) {
+			final Type element = type.getSort() == Type.ARRAY ? type.getElementType() : type;
+			if (element.getSort() == Type.OBJECT && !element.getInternalName().equals(name)) {
+				coupled.add(element.getInternalName());
+			}
+		}
+
+		ClassMetrics result(final String location, final String path, final long id) {
+			final int slash = name.lastIndexOf('/');
+			return new ClassMetrics(location, path, slash == -1 ? "" : name.substring(0, slash), sourceFileName,
+					name, id, complexity, lines.size(), methods.size(), Collections.unmodifiableList(methods), null,
+					new int[] { coupled.size(), instructions });
+		}
+
+		public String getClassName() {
+			return name;
+		}
+
+		public String getSuperClassName() {
+			return superName;
+		}
+
+		public Set<String> getClassAnnotations() {
+			return annotations;
+		}
+
+		public String getSourceFileName() {
+			return sourceFileName;
+		}
+
+		public String getSourceDebugExtension() {
+			return sourceDebugExtension;
+		}
+
+	}
+
+	/**
+	 * @return branches of an instruction besides the one to the next
+	 *         instruction: its jump target, the probe of a return or throw,
+	 *         the distinct targets of a switch
+	 */
+	private static int targets(final AbstractInsnNode insn) {
+		switch (insn.getType()) {
+		case AbstractInsnNode.JUMP_INSN:
+			return 1;
+		case AbstractInsnNode.TABLESWITCH_INSN: {
+			final TableSwitchInsnNode s = (TableSwitchInsnNode) insn;
+			return distinct(s.dflt, s.labels);
+		}
+		case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+			final LookupSwitchInsnNode s = (LookupSwitchInsnNode) insn;
+			return distinct(s.dflt, s.labels);
+		}
+		default:
+			final int opcode = insn.getOpcode();
+			return opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN || opcode == Opcodes.ATHROW ? 1 : 0;
+		}
+	}
+
+	private static int distinct(final LabelNode dflt, final List<LabelNode> labels) {
+		final Set<LabelNode> targets = Collections.newSetFromMap(new IdentityHashMap<LabelNode, Boolean>());
+		targets.add(dflt);
+		targets.addAll(labels);
+		return targets.size();
+	}
+
+	/**
+	 * @return whether the next instruction can be reached by fall through
+	 */
+	private static boolean fallsThrough(final int opcode) {
+		switch (opcode) {
+		case Opcodes.GOTO:
+		case Opcodes.TABLESWITCH:
+		case Opcodes.LOOKUPSWITCH:
+		case Opcodes.IRETURN:
+		case Opcodes.LRETURN:
+		case Opcodes.FRETURN:
+		case Opcodes.DRETURN:
+		case Opcodes.ARETURN:
+		case Opcodes.RETURN:
+		case Opcodes.ATHROW:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Receives the outcome of the filters, by instruction index: ignored
+	 * instructions, instructions merged into another one and instructions
+	 * whose branches are replaced.
+	 */
+	private static final class Output implements IFilterOutput {
+
+		private final InsnList insns;
+		private final boolean[] ignored;
+		/** representative of each merged instruction, -1 if none */
+		private int[] merged;
+		private int[] replaced;
+
+		Output(final InsnList insns, final boolean[] ignored) {
+			this.insns = insns;
+			this.ignored = ignored;
+		}
+
+		public void ignore(final AbstractInsnNode fromInclusive, final AbstractInsnNode toInclusive) {
+			for (AbstractInsnNode i = fromInclusive; i != toInclusive; i = i.getNext()) {
+				ignored[insns.indexOf(i)] = true;
+			}
+			ignored[insns.indexOf(toInclusive)] = true;
+		}
+
+		public void merge(final AbstractInsnNode i1, final AbstractInsnNode i2) {
+			if (merged == null) {
+				merged = new int[ignored.length];
+				Arrays.fill(merged, -1);
+			}
+			final int r1 = representative(insns.indexOf(i1));
+			final int r2 = representative(insns.indexOf(i2));
+			if (r1 != r2) {
+				merged[r2] = r1;
+			}
+		}
+
+		public void replaceBranches(final AbstractInsnNode source, final Set<AbstractInsnNode> newTargets) {
+			if (replaced == null) {
+				replaced = new int[ignored.length];
+				Arrays.fill(replaced, -1);
+			}
+			replaced[insns.indexOf(source)] = newTargets.size();
+		}
+
+		private int representative(int i) {
+			while (merged[i] != -1) {
+				i = merged[i];
+			}
+			return i;
+		}
+
+		/**
+		 * A merged instruction only counts through its representative, which
+		 * keeps its own branches; a replacement sets the branch count.
+		 */
+		void apply(final int[] branches) {
+			if (merged != null) {
+				for (int i = 0; i < merged.length; i++) {
+					if (merged[i] != -1) {
+						ignored[i] = true;
+					}
+				}
+			}
+			if (replaced != null) {
+				for (int i = 0; i < replaced.length; i++) {
+					if (replaced[i] != -1) {
+						branches[i] = replaced[i];
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Distinct line numbers, as a bit set.
+	 */
+	private static final class LineSet {
+
+		private long[] bits = new long[4];
+		private int size;
+
+		void add(final int line) {
+			final int word = line >>> 6;
+			if (word >= bits.length) {
+				bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+			}
+			final long mask = 1L << line;
+			if ((bits[word] & mask) == 0) {
+				bits[word] |= mask;
+				size++;
+			}
+		}
+
+		int size() {
+			return size;
+		}
+
+	}
+
+}
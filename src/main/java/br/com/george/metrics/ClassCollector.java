@@ -0,0 +1,95 @@
+package br.com.george.metrics;
+
+import org.jacoco.core.analysis.CoverageBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Visitor collecting the {@link ClassMetrics} of all analyzed
+ * classes, sorted by class name. Of several classes with the same name,
+ * which {@link CoverageBuilder} rejects, one is kept once the analysis is
+ * complete, so that the choice does not depend on the order the workers
+ * finished in: the one of {@link ClassCopies} when it tells the copies
+ * apart, otherwise the one read from the first class file in path order.
+ * A different class skipped is reported with a warning.
+ */
+final class ClassCollector implements ClassMetricsVisitor {
+
+	private static final Comparator<ClassMetrics> BY_PATH = new Comparator<ClassMetrics>() {
+		public int compare(final ClassMetrics a, final ClassMetrics b) {
+			return a.path.compareTo(b.path);
+		}
+	};
+
+	private final Map<String, ClassMetrics> classes = new TreeMap<String, ClassMetrics>();
+	/** the classes with the name of a class collected before, rare */
+	private final List<ClassMetrics> others = new ArrayList<ClassMetrics>();
+	private final RunStats stats;
+	private final ClassCopies copies;
+
+	ClassCollector(final RunStats stats) {
+		this(stats, null);
+	}
+
+	/**
+	 * @param copies
+	 *            the copies of the classes, which choose the class kept and
+	 *            report the others, or <code>null</code> when every class
+	 *            file was analyzed
+	 */
+	ClassCollector(final RunStats stats, final ClassCopies copies) {
+		this.stats = stats;
+		this.copies = copies;
+	}
+
+	public void visit(final ClassMetrics cm) {
+		synchronized (classes) {
+			if (classes.putIfAbsent(cm.name, cm) != null) {
+				others.add(cm);
+			}
+		}
+	}
+
+	/**
+	 * @return the collected classes sorted by name, one per name
+	 */
+	Collection<ClassMetrics> getClasses() {
+		synchronized (classes) {
+			final List<ClassMetrics> skipped = new ArrayList<ClassMetrics>();
+			for (ClassMetrics cm : others) {
+				final ClassMetrics kept = classes.get(cm.name);
+				if (compare(cm, kept) < 0) {
+					classes.put(cm.name, cm);
+					skipped.add(kept);
+				} else {
+					skipped.add(cm);
+				}
+			}
+			others.clear();
+			if (copies == null) {
+				Collections.sort(skipped, BY_PATH);
+				for (ClassMetrics cm : skipped) {
+					if (cm.id != classes.get(cm.name).id) {
+						stats.version(cm.name, cm.path);
+					}
+				}
+			}
+			return classes.values();
+		}
+	}
+
+	private int compare(final ClassMetrics a, final ClassMetrics b) {
+		if (copies != null) {
+			return copies.compare(a, b);
+		}
+		final int c = BY_PATH.compare(a, b);
+		return c != 0 ? c : Long.compare(a.id, b.id);
+	}
+
+}
@@ -0,0 +1,216 @@
+package br.com.george.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Identical class files found more than once, in several archives or
+ * directories of the inputs (repeated dependency jars, libraries of a war
+ * also deployed in an ear...). Classes are identified by the CRC64 of their
+ * content, the id JaCoCo gives them: only the first copy of a class is
+ * analyzed, the others only add their location.
+ * <p>
+ * A copy may be found after its class was written with <code>--stream</code>,
+ * so the locations and the rollups of the copies are written by
+ * {@link #record(MetricsRecorder, RunStats)} once the analysis is complete.
+ * <p>
+ * Different classes with the same name (two versions of a library...) can't
+ * both be written. The one kept is the one whose first class file, in the
+ * order of the full paths of the class files, comes first, whatever the
+ * order the workers read them in. The class files of the others are
+ * locations of the class kept, not counted in the rollups. As a class
+ * written can't be dropped, <code>--stream</code> finds the classes of
+ * every name with {@link #found(long, String, String)} before the analysis.
+ */
+final class ClassCopies {
+
+	private static final Comparator<Copies> FIRST = new Comparator<Copies>() {
+		public int compare(final Copies a, final Copies b) {
+			return a.first.equals(b.first) ? Long.compare(a.id, b.id) : a.first.compareTo(b.first);
+		}
+	};
+
+	private final boolean countEach;
+	private final ConcurrentMap<Long, Copies> classes = new ConcurrentHashMap<Long, Copies>();
+	/** the class kept of every name, when the classes were found before the analysis */
+	private final ConcurrentMap<String, Copies> names = new ConcurrentHashMap<String, Copies>();
+
+	/**
+	 * @param countEach
+	 *            add every copy to the package and file rollups, as if the
+	 *            copies were different classes; otherwise a class counts
+	 *            once
+	 */
+	ClassCopies(final boolean countEach) {
+		this.countEach = countEach;
+	}
+
+	/**
+	 * Registers a class file before the analysis, in a first pass over the
+	 * inputs.
+	 *
+	 * @param id
+	 *            CRC64 of the class file
+	 * @param name
+	 *            name of the class read from the class file
+	 * @param path
+	 *            full name of the class file
+	 */
+	void found(final long id, final String name, final String path) {
+		final Copies found = new Copies(id, null, path);
+		Copies kept = names.putIfAbsent(name, found);
+		while (kept != null && FIRST.compare(found, kept) < 0 && !names.replace(name, kept, found)) {
+			kept = names.get(name);
+		}
+	}
+
+	/**
+	 * Registers a copy of a class, called before its analysis.
+	 *
+	 * @param id
+	 *            CRC64 of the class file
+	 * @param path
+	 *            full name of the class file
+	 * @return <code>true</code> if this is the first copy, to be analyzed
+	 */
+	boolean first(final long id, final String location, final String path) {
+		final Copies created = new Copies(id, location, path);
+		final Copies copies = classes.putIfAbsent(Long.valueOf(id), created);
+		if (copies == null) {
+			return true;
+		}
+		synchronized (copies) {
+			copies.count++;
+			copies.locations.add(location);
+			if (path.compareTo(copies.first) < 0) {
+				copies.first = path;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records the class analyzed from the first copy.
+	 *
+	 * @return <code>false</code> if a different class with the same name was
+	 *         found before the analysis and is kept, this one is then not to
+	 *         be written
+	 */
+	boolean analyzed(final ClassMetrics cm) {
+		final Copies copies = classes.get(Long.valueOf(cm.id));
+		if (copies != null) {
+			synchronized (copies) {
+				copies.analyzed(cm);
+			}
+		}
+		final Copies kept = names.get(cm.name);
+		return kept == null || kept.id == cm.id;
+	}
+
+	/**
+	 * Compares two analyzed classes with the same name by the rule of the
+	 * class kept.
+	 *
+	 * @return a negative number if the first class is to be kept
+	 */
+	int compare(final ClassMetrics a, final ClassMetrics b) {
+		return FIRST.compare(classes.get(Long.valueOf(a.id)), classes.get(Long.valueOf(b.id)));
+	}
+
+	/**
+	 * Writes the locations of the other copies and, with
+	 * <code>countEach</code>, adds them to the rollups. The copies of the
+	 * other classes of a name are locations of the class kept, not counted,
+	 * and are reported to the statistics. Must be called before
+	 * {@link MetricsRecorder#finish()}.
+	 */
+	void record(final MetricsRecorder recorder, final RunStats stats) throws Exception {
+		final Map<String, Copies> kept = new HashMap<String, Copies>();
+		for (Copies c : classes.values()) {
+			final Copies k = c.name != null ? kept.get(c.name) : null;
+			if (c.name != null && (k == null || FIRST.compare(c, k) < 0)) {
+				kept.put(c.name, c);
+			}
+		}
+		final List<Copies> skipped = new ArrayList<Copies>();
+		for (Copies c : classes.values()) {
+			if (c.name == null) {
+				continue;
+			}
+			final Copies k = kept.get(c.name);
+			if (k != c) {
+				skipped.add(c);
+				for (String location : c.locations) {
+					recorder.location(k.packageName, k.sourceFileName, k.name, location);
+				}
+				continue;
+			}
+			if (c.count == 1) {
+				continue;
+			}
+			for (String location : c.locations) {
+				if (!location.equals(c.location)) {
+					recorder.location(c.packageName, c.sourceFileName, c.name, location);
+				}
+			}
+			if (countEach) {
+				for (int i = 1; i < c.count; i++) {
+					recorder.rollup(c.packageName, c.sourceFileName, c.complexity, c.lines, c.methods);
+				}
+			}
+		}
+		Collections.sort(skipped, FIRST);
+		for (Copies c : skipped) {
+			stats.version(c.name, c.first);
+		}
+	}
+
+	/**
+	 * The copies of one class and the values needed for their rows, not
+	 * the whole {@link ClassMetrics}: every class has an entry.
+	 */
+	private static final class Copies {
+
+		final long id;
+		int count = 1;
+		final Set<String> locations = new TreeSet<String>();
+		/** full name of the first class file of the copies, in path order */
+		String first;
+		/** <code>null</code> until the first copy is analyzed */
+		String name;
+		String packageName;
+		String sourceFileName;
+		String location;
+		int complexity;
+		int lines;
+		int methods;
+
+		Copies(final long id, final String location, final String path) {
+			this.id = id;
+			this.first = path;
+			if (location != null) {
+				locations.add(location);
+			}
+		}
+
+		void analyzed(final ClassMetrics cm) {
+			name = cm.name;
+			packageName = cm.packageName;
+			sourceFileName = cm.sourceFileName;
+			location = cm.location;
+			complexity = cm.complexity;
+			lines = cm.lines;
+			methods = cm.methods.size();
+		}
+
+	}
+
+}
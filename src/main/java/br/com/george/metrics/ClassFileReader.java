@@ -0,0 +1,71 @@
+package br.com.george.metrics;
+
+import org.jacoco.core.internal.instr.InstrSupport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads class files through a {@link FileChannel}. Small files are read into
+ * a direct buffer owned by the calling thread, so each worker reuses one
+ * buffer; large files are memory-mapped. In both cases the content is copied
+ * once into a byte array of the exact size, as needed by the analyzer.
+ */
+final class ClassFileReader {
+
+	/** files above this size are mapped instead of read */
+	static final int MAP_THRESHOLD = 64 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(MAP_THRESHOLD);
+		}
+	};
+
+	private ClassFileReader() {
+	}
+
+	static byte[] read(final Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Class file too large: " + file);
+			}
+			if (size > MAP_THRESHOLD) {
+				final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				final byte[] bytes = new byte[(int) size];
+				mapped.get(bytes);
+				return bytes;
+			}
+			final ByteBuffer buffer = BUFFERS.get();
+			buffer.clear();
+			buffer.limit((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// read until the buffer is full or the file ends
+			}
+			buffer.flip();
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return bytes;
+		}
+	}
+
+	/**
+	 * Reads the name of a class from the constant pool of its class file.
+	 *
+	 * @param file
+	 *            full name of the class file, for the error
+	 */
+	static String className(final String file, final byte[] bytes) throws IOException {
+		try {
+			return InstrSupport.classReaderFor(bytes).getClassName();
+		} catch (RuntimeException e) {
+			throw new IOException(String.format("Error while reading the class name of %s.", file), e);
+		}
+	}
+
+}
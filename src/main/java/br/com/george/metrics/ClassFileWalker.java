@@ -0,0 +1,302 @@
+package br.com.george.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Finds the class files of a directory tree and hands them out as soon as
+ * they are found. The walk is sequential through
+ * {@link Files#walkFileTree}, or runs one task per directory on a fork/join
+ * pool, which pays off on network file systems where listing a directory
+ * is slow. When the root is the root of the packages, which is checked on
+ * the first class file found, directories are taken as packages: with a
+ * {@link ClassFilter}, the subtrees of the packages it drops are not listed
+ * and their class files are not opened. Otherwise, as for a build directory
+ * holding several class trees, every class file is passed on and the filter
+ * only tests the class name read from it. The jar, war, ear and zip
+ * archives found are passed on to be read as well, except the ones in the
+ * subtrees not listed.
+ */
+final class ClassFileWalker {
+
+	private static final String SUFFIX = ".class";
+
+	private final int threads;
+	private final boolean followLinks;
+	private final ClassFilter filter;
+	private final PrintStream out;
+
+	/**
+	 * Receives the archives found in a directory tree, on the walking
+	 * threads.
+	 */
+	interface Archives {
+
+		void found(Path file) throws IOException;
+
+	}
+
+	/**
+	 * @param threads
+	 *            number of threads listing directories, 1 walks on the
+	 *            calling thread
+	 * @param followLinks
+	 *            whether symbolic links to directories are followed
+	 * @param filter
+	 *            classes to keep, or <code>null</code> for all
+	 * @param out
+	 *            stream for the warning of a root that is not the root of
+	 *            its packages
+	 */
+	ClassFileWalker(final int threads, final boolean followLinks, final ClassFilter filter, final PrintStream out) {
+		this.threads = threads;
+		this.followLinks = followLinks;
+		this.filter = filter;
+		this.out = out;
+	}
+
+	/**
+	 * Walks the given directory.
+	 *
+	 * @param sink
+	 *            thread safe receiver of the class files
+	 * @param archives
+	 *            thread safe receiver of the archives
+	 */
+	void walk(final Path root, final Consumer<ClassSource> sink, final Archives archives) throws IOException {
+		final String location = root.toAbsolutePath().toString();
+		// package of the root, null to pass on every class file
+		final ClassFilter.State start = filter != null && isPackageRoot(root) ? filter.start() : null;
+		if (threads == 1) {
+			walkSequential(root, location, start, sink, archives);
+		} else {
+			walkParallel(root, location, start, sink, archives);
+		}
+	}
+
+	/**
+	 * Tells whether the directories below the given root are the packages
+	 * of their classes, comparing the path of the first class file found
+	 * with the name read from it, and warns when they are not.
+	 */
+	private boolean isPackageRoot(final Path root) throws IOException {
+		final Path file = firstClassFile(root);
+		if (file == null) {
+			// nothing to check without following links
+			return false;
+		}
+		final String relative = root.relativize(file).toString().replace(File.separatorChar, '/');
+		final String path = relative.substring(0, relative.length() - SUFFIX.length());
+		final String name = ClassFileReader.className(file.toString(), ClassFileReader.read(file));
+		if (name.equals(path)) {
+			return true;
+		}
+		out.printf("Warning: %s holds the class %s, %s is not the root of its packages:"
+				+ " every class file is read and filtered by its class name%n", file, name, root);
+		return false;
+	}
+
+	/**
+	 * @return the first class file below the given directory, the ones of
+	 *         a directory before those of its subdirectories
+	 */
+	private static Path firstClassFile(final Path dir) throws IOException {
+		final List<Path> subdirectories = new ArrayList<Path>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path entry : entries) {
+				if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+					subdirectories.add(entry);
+				} else if (entry.getFileName().toString().endsWith(SUFFIX)
+						&& Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)) {
+					return entry;
+				}
+			}
+		}
+		for (Path subdirectory : subdirectories) {
+			final Path file = firstClassFile(subdirectory);
+			if (file != null) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	private void walkSequential(final Path root, final String location, final ClassFilter.State start,
+			final Consumer<ClassSource> sink, final Archives archives) throws IOException {
+		final Set<FileVisitOption> options = followLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS)
+				: EnumSet.noneOf(FileVisitOption.class);
+		// package of each directory being visited
+		final Deque<ClassFilter.State> packages = new ArrayDeque<ClassFilter.State>();
+		Files.walkFileTree(root, options, Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+				if (start == null) {
+					return FileVisitResult.CONTINUE;
+				}
+				final ClassFilter.State state = packages.isEmpty() ? start
+						: packages.peek().enter(dir.getFileName().toString());
+				if (state.pruned()) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				packages.push(state);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+				if (exc != null) {
+					throw exc;
+				}
+				if (start != null) {
+					packages.pop();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				visit(file, attrs, location, packages.peek(), sink, archives);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(final Path file, final IOException exc) throws IOException {
+				if (exc instanceof FileSystemLoopException) {
+					return FileVisitResult.CONTINUE;
+				}
+				throw exc;
+			}
+		});
+	}
+
+	private void walkParallel(final Path root, final String location, final ClassFilter.State start,
+			final Consumer<ClassSource> sink, final Archives archives) throws IOException {
+		final Set<Object> visited = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+		visited.add(key(root, Files.readAttributes(root, BasicFileAttributes.class)));
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new DirectoryTask(root, location, start, sink, archives, visited));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Passes a regular or (when not walking through links) linked class file
+	 * to the sink, or archive to the receiver of the archives.
+	 *
+	 * @param pkg
+	 *            state of the directory of the file, <code>null</code>
+	 *            without filter or pruning
+	 */
+	private static void visit(final Path file, BasicFileAttributes attrs, final String location,
+			final ClassFilter.State pkg, final Consumer<ClassSource> sink, final Archives archives)
+			throws IOException {
+		final String name = file.getFileName().toString();
+		final boolean archive = ClassSource.isArchive(name);
+		if (!archive && !name.endsWith(SUFFIX)) {
+			return;
+		}
+		if (!archive && pkg != null && !pkg.accepts(name.substring(0, name.length() - SUFFIX.length()))) {
+			return;
+		}
+		if (attrs.isSymbolicLink()) {
+			if (!Files.isRegularFile(file)) {
+				return;
+			}
+			attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		}
+		if (!attrs.isRegularFile()) {
+			return;
+		}
+		if (archive) {
+			archives.found(file);
+		} else {
+			sink.accept(new ClassSource.FileSource(location, file, attrs.size(), attrs.lastModifiedTime()
+					.toMillis()));
+		}
+	}
+
+	private static Object key(final Path dir, final BasicFileAttributes attrs) throws IOException {
+		return attrs.fileKey() != null ? attrs.fileKey() : dir.toRealPath();
+	}
+
+	private final class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final String location;
+		/** package of the directory, <code>null</code> without filter or pruning */
+		private final ClassFilter.State pkg;
+		private final Consumer<ClassSource> sink;
+		private final Archives archives;
+		private final Set<Object> visited;
+
+		DirectoryTask(final Path dir, final String location, final ClassFilter.State pkg,
+				final Consumer<ClassSource> sink, final Archives archives, final Set<Object> visited) {
+			this.dir = dir;
+			this.location = location;
+			this.pkg = pkg;
+			this.sink = sink;
+			this.archives = archives;
+			this.visited = visited;
+		}
+
+		@Override
+		protected void compute() {
+			final List<DirectoryTask> children = new ArrayList<DirectoryTask>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+				for (Path entry : entries) {
+					BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+							LinkOption.NOFOLLOW_LINKS);
+					if (attrs.isSymbolicLink() && followLinks && Files.isDirectory(entry)) {
+						attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+					}
+					if (attrs.isDirectory()) {
+						final ClassFilter.State sub = pkg != null ? pkg.enter(entry.getFileName().toString()) : null;
+						if (sub != null && sub.pruned()) {
+							continue;
+						}
+						if (followLinks && !visited.add(key(entry, attrs))) {
+							// reached again through a link
+							continue;
+						}
+						children.add(new DirectoryTask(entry, location, sub, sink, archives, visited));
+					} else {
+						visit(entry, attrs, location, pkg, sink, archives);
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			invokeAll(children);
+		}
+
+	}
+
+}
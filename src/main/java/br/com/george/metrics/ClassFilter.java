@@ -0,0 +1,306 @@
+package br.com.george.metrics;
+
+import org.jacoco.core.internal.instr.InstrSupport;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The classes selected by <code>--include</code> and <code>--exclude</code>.
+ * A pattern is a class name, dotted or with slashes, whose segments may use
+ * <code>*</code> and <code>?</code> within a segment and <code>**</code>
+ * for any number of segments: <code>com.acme.proto.**</code>,
+ * <code>**.*Dto</code>. A class is kept when it matches an include (or there
+ * is none) and no exclude; a pattern matching a class also matches its
+ * nested classes.
+ * <p>
+ * The patterns are compiled into one automaton over the segments of the
+ * class name. Its {@link State} is computed once per directory while a tree
+ * is walked from the root of its packages, so a class file is tested with
+ * one more step and a directory that can't contain a kept class is pruned
+ * without being listed. Every class is then tested with the name read from
+ * its constant pool, the only one of the classes of archives and of trees
+ * whose paths don't follow the packages.
+ * <p>
+ * With <code>--shard i/N</code> the filter also keeps only the classes of
+ * one shard, chosen by a hash of the top level class name that is the same
+ * in every process, so that N runs over the same inputs partition them and
+ * the copies and nested classes of a class stay together. The name is
+ * always the one read from the class file, never its path, and the filter
+ * counts the classes it sees for the merge to check the partition.
+ */
+final class ClassFilter {
+
+	private static final String ANY = "**";
+
+	private final String[][] patterns;
+	/** first position of each pattern in the states, the last one ends the pattern */
+	private final int[] offsets;
+	private final int includes;
+	/** kept shard, from 0, and number of shards, 0 without sharding */
+	private final int shard;
+	private final int shards;
+	private final State start;
+
+	/** class files kept by the patterns, and those of them in the shard */
+	final LongAdder matched = new LongAdder();
+	final LongAdder kept = new LongAdder();
+
+	/**
+	 * @param include
+	 *            patterns of the classes to keep, all classes when empty
+	 * @param exclude
+	 *            patterns of the classes to drop
+	 */
+	ClassFilter(final List<String> include, final List<String> exclude) {
+		this(include, exclude, 0, 0);
+	}
+
+	/**
+	 * @param shard
+	 *            shard of the kept classes, from 0
+	 * @param shards
+	 *            number of shards, 0 to keep the classes of every shard
+	 */
+	ClassFilter(final List<String> include, final List<String> exclude, final int shard, final int shards) {
+		this.shard = shard;
+		this.shards = shards;
+		final List<String[]> all = new ArrayList<String[]>();
+		for (String pattern : include) {
+			all.add(compile(pattern));
+		}
+		for (String pattern : exclude) {
+			all.add(compile(pattern));
+		}
+		this.patterns = all.toArray(new String[all.size()][]);
+		this.includes = include.size();
+		this.offsets = new int[patterns.length + 1];
+		for (int i = 0; i < patterns.length; i++) {
+			offsets[i + 1] = offsets[i] + patterns[i].length + 1;
+		}
+		final BitSet positions = new BitSet();
+		for (int i = 0; i < patterns.length; i++) {
+			add(positions, i, 0);
+		}
+		this.start = new State(positions);
+	}
+
+	private static String[] compile(final String pattern) {
+		final String name = pattern.replace('.', '/');
+		if (name.isEmpty() || name.startsWith("/") || name.endsWith("/") || name.contains("//")) {
+			throw new IllegalArgumentException("Invalid class pattern " + pattern);
+		}
+		return name.split("/");
+	}
+
+	/**
+	 * @return state of the default package, the root of a tree
+	 */
+	State start() {
+		return start;
+	}
+
+	/**
+	 * Tells whether the class with the given name, with slashes, is kept.
+	 */
+	boolean accepts(final String className) {
+		State state = start;
+		int from = 0;
+		int slash;
+		while ((slash = className.indexOf('/', from)) >= 0) {
+			state = state.enter(className.substring(from, slash));
+			if (state.pruned()) {
+				return false;
+			}
+			from = slash + 1;
+		}
+		return state.accepts(className.substring(from));
+	}
+
+	/**
+	 * Tells whether the given class file is kept, reading its name from the
+	 * constant pool: nothing after it is parsed. This is the only test of
+	 * the shard.
+	 */
+	boolean accepts(final byte[] bytes) {
+		final String name = InstrSupport.classReaderFor(bytes).getClassName();
+		if (!accepts(name)) {
+			return false;
+		}
+		matched.increment();
+		if (shards > 0 && shard(topLevel(name), shards) != shard) {
+			return false;
+		}
+		kept.increment();
+		return true;
+	}
+
+	/**
+	 * @return name of the top level class of the given class
+	 */
+	static String topLevel(final String className) {
+		final int start = className.lastIndexOf('/') + 1;
+		final int dollar = className.indexOf('$', start);
+		return dollar > start ? className.substring(0, dollar) : className;
+	}
+
+	/**
+	 * Adds a position and, when it is at <code>**</code>, the following ones
+	 * as <code>**</code> also matches no segment.
+	 */
+	private void add(final BitSet positions, final int pattern, int pos) {
+		final String[] segments = patterns[pattern];
+		positions.set(offsets[pattern] + pos);
+		while (pos < segments.length && ANY.equals(segments[pos])) {
+			positions.set(offsets[pattern] + ++pos);
+		}
+	}
+
+	private int pattern(final int position) {
+		int i = 0;
+		while (offsets[i + 1] <= position) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return shard of a top level class, from 0
+	 */
+	static int shard(final String topLevelName, final int shards) {
+		// String.hashCode is specified, the same in every JVM; mixed as similar names have close hashes
+		int h = topLevelName.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return Math.floorMod(h, shards);
+	}
+
+	/**
+	 * Matches a segment against a glob where <code>*</code> is any sequence
+	 * and <code>?</code> any character.
+	 */
+	static boolean matches(final String glob, final String segment) {
+		int g = 0;
+		int s = 0;
+		int star = -1;
+		int mark = 0;
+		while (s < segment.length()) {
+			if (g < glob.length() && (glob.charAt(g) == '?' || glob.charAt(g) == segment.charAt(s))) {
+				g++;
+				s++;
+			} else if (g < glob.length() && glob.charAt(g) == '*') {
+				star = g++;
+				mark = s;
+			} else if (star >= 0) {
+				g = star + 1;
+				s = ++mark;
+			} else {
+				return false;
+			}
+		}
+		while (g < glob.length() && glob.charAt(g) == '*') {
+			g++;
+		}
+		return g == glob.length();
+	}
+
+	/**
+	 * The positions reached in every pattern after the segments of a
+	 * package.
+	 */
+	final class State {
+
+		private final BitSet positions;
+
+		private State(final BitSet positions) {
+			this.positions = positions;
+		}
+
+		/**
+		 * @return the state of the subpackage with the given name
+		 */
+		State enter(final String segment) {
+			final BitSet next = new BitSet();
+			for (int p = positions.nextSetBit(0); p >= 0; p = positions.nextSetBit(p + 1)) {
+				final int i = pattern(p);
+				final int pos = p - offsets[i];
+				final String[] segments = patterns[i];
+				if (pos == segments.length) {
+					continue;
+				}
+				if (ANY.equals(segments[pos])) {
+					add(next, i, pos);
+				} else if (matches(segments[pos], segment)) {
+					add(next, i, pos + 1);
+				}
+			}
+			return new State(next);
+		}
+
+		/**
+		 * @return <code>true</code> if no class of this package or its
+		 *         subpackages is kept
+		 */
+		boolean pruned() {
+			final int first = positions.nextSetBit(0);
+			if (includes > 0 && (first < 0 || first >= offsets[includes])) {
+				return true;
+			}
+			for (int p = positions.nextSetBit(offsets[includes]); p >= 0; p = positions.nextSetBit(p + 1)) {
+				final int i = pattern(p);
+				final int pos = p - offsets[i];
+				// a trailing ** matches everything below
+				if (pos == patterns[i].length - 1 && ANY.equals(patterns[i][pos])) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Tells whether the class with the given simple name, in this
+		 * package, is kept by the patterns. A nested class is also tested
+		 * with the name of its top level class.
+		 */
+		boolean accepts(final String simpleName) {
+			final int dollar = simpleName.indexOf('$');
+			final String outer = dollar > 0 ? simpleName.substring(0, dollar) : null;
+			boolean included = includes == 0;
+			for (int p = positions.nextSetBit(0); p >= 0; p = positions.nextSetBit(p + 1)) {
+				final int i = pattern(p);
+				if (i < includes && included) {
+					continue;
+				}
+				final int pos = p - offsets[i];
+				if (matchesLast(i, pos, simpleName) || outer != null && matchesLast(i, pos, outer)) {
+					if (i >= includes) {
+						return false;
+					}
+					included = true;
+				}
+			}
+			return included;
+		}
+
+		/**
+		 * @return whether the pattern at the given position matches a last
+		 *         segment
+		 */
+		private boolean matchesLast(final int pattern, final int pos, final String segment) {
+			final String[] segments = patterns[pattern];
+			if (pos == segments.length) {
+				return false;
+			}
+			if (ANY.equals(segments[pos])) {
+				// trailing ** (the positions after it are in the state too)
+				return pos == segments.length - 1;
+			}
+			return pos == segments.length - 1 && matches(segments[pos], segment);
+		}
+
+	}
+
+}
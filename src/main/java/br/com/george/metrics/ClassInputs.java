@@ -0,0 +1,186 @@
+package br.com.george.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The class sources of the input paths, each either a directory tree of
+ * class files or a jar, war or ear archive. The archives found in the
+ * directory trees are read too, so a tree of modules and their
+ * <code>libs</code> directories is one input. Sources are handed out while
+ * they are discovered; archives stay open until this object is closed.
+ * With a {@link ClassFilter}, class files are dropped by their path where
+ * possible, before they are read, and otherwise by the class name read from
+ * them, before they are analyzed.
+ */
+final class ClassInputs implements Closeable {
+
+	/** the directory of the changed files, or <code>null</code> */
+	private final File path;
+	private final List<File> roots;
+	private final ClassFileWalker walker;
+	private final Collection<Path> files;
+	private final ClassFilter filter;
+	private final List<ZipFile> archives = new ArrayList<ZipFile>();
+
+	/**
+	 * @param roots
+	 *            directories and archives to scan
+	 * @param walker
+	 *            walker used for the directories, with the same filter
+	 * @param filter
+	 *            classes to keep, or <code>null</code> for all
+	 */
+	ClassInputs(final List<File> roots, final ClassFileWalker walker, final ClassFilter filter) {
+		this.path = null;
+		this.roots = roots;
+		this.walker = walker;
+		this.files = null;
+		this.filter = filter;
+	}
+
+	/**
+	 * Inputs limited to some files of a directory tree, the ones reported
+	 * changed by <code>--watch</code>. Files that no longer exist, and
+	 * paths that are not class files, are skipped.
+	 *
+	 * @param root
+	 *            directory the files belong to
+	 */
+	ClassInputs(final File root, final Collection<Path> files, final ClassFilter filter) {
+		this.path = root;
+		this.roots = null;
+		this.walker = null;
+		this.files = files;
+		this.filter = filter;
+	}
+
+	/**
+	 * @return the input paths of the command line, separated by the path
+	 *         separator of the platform as in a class path, each once
+	 */
+	static List<File> roots(final String paths) {
+		final Set<File> roots = new LinkedHashSet<File>();
+		for (String path : paths.split(Pattern.quote(File.pathSeparator))) {
+			if (!path.isEmpty()) {
+				roots.add(new File(path).getAbsoluteFile());
+			}
+		}
+		return new ArrayList<File>(roots);
+	}
+
+	/**
+	 * Passes every class source of the input paths to the given sink, which
+	 * must be thread safe.
+	 */
+	void scan(final Consumer<ClassSource> sink) throws IOException {
+		scan(sink, true);
+	}
+
+	/**
+	 * Passes every class source of the input paths to the given sink, which
+	 * must be thread safe.
+	 *
+	 * @param filtered
+	 *            whether the classes are also tested by the name read from
+	 *            them, which counts them for the shard check of
+	 *            {@link PartialResults}; the paths are tested in any case
+	 */
+	void scan(final Consumer<ClassSource> sink, final boolean filtered) throws IOException {
+		final Consumer<ClassSource> target = filter == null || !filtered ? sink : new Consumer<ClassSource>() {
+			public void accept(final ClassSource source) {
+				sink.accept(new ClassSource.Filtered(source, filter));
+			}
+		};
+		if (files != null) {
+			scanFiles(target);
+			return;
+		}
+		final ClassFileWalker.Archives archives = new ClassFileWalker.Archives() {
+			public void found(final Path file) throws IOException {
+				scanArchive(file.toFile(), target);
+			}
+		};
+		for (File root : roots) {
+			if (root.isFile() && ClassSource.isArchive(root.getName())) {
+				scanArchive(root, target);
+			} else {
+				walker.walk(root.toPath(), target, archives);
+			}
+		}
+	}
+
+	private void scanFiles(final Consumer<ClassSource> sink) throws IOException {
+		final String location = path.getAbsolutePath();
+		for (Path file : files) {
+			final String name = file.getFileName().toString();
+			// the filter tests the name read from the file, the root may not be a package root
+			if (!name.endsWith(".class") || !Files.isRegularFile(file)) {
+				continue;
+			}
+			final BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				// deleted since it was reported
+				continue;
+			}
+			sink.accept(new ClassSource.FileSource(location, file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+		}
+	}
+
+	/**
+	 * Passes the entries of an archive, called by the walker threads for the
+	 * archives of the directory trees.
+	 */
+	private void scanArchive(final File file, final Consumer<ClassSource> sink) throws IOException {
+		final ZipFile zip = new ZipFile(file);
+		synchronized (archives) {
+			archives.add(zip);
+		}
+		final String location = file.getAbsolutePath();
+		final Enumeration<? extends ZipEntry> entries = zip.entries();
+		while (entries.hasMoreElements()) {
+			final ZipEntry entry = entries.nextElement();
+			if (entry.isDirectory()) {
+				continue;
+			}
+			if (ClassSource.isClassEntry(entry.getName())) {
+				sink.accept(new ClassSource.EntrySource(location, zip, entry));
+			} else if (ClassSource.isArchive(entry.getName())) {
+				sink.accept(new ClassSource.NestedSource(location, zip, entry));
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (ZipFile zip : archives) {
+			try {
+				zip.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+}
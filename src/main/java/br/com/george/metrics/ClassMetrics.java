@@ -0,0 +1,124 @@
+package br.com.george.metrics;
+
+import org.jacoco.core.analysis.IClassCoverage;
+import org.jacoco.core.analysis.ICounter;
+import org.jacoco.core.analysis.ICoverageNode;
+import org.jacoco.core.analysis.IMethodCoverage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The values of one analyzed class that end up in the output. Unlike
+ * {@link IClassCoverage} it keeps no line or instruction data, so it can be
+ * retained or queued cheaply.
+ */
+final class ClassMetrics {
+
+	final String location;
+	final String path;
+	final String packageName;
+	final String sourceFileName;
+	final String name;
+	final long id;
+	final int complexity;
+	final int lines;
+	final int methodCount;
+	final List<Method> methods;
+	/** see {@link #coverage(ICoverageNode)}, <code>null</code> without execution data */
+	final int[] coverage;
+	/** fan-out and instructions, see {@link MetricsRecorder#BYTECODE}, <code>null</code> with the JaCoCo engine */
+	final int[] bytecode;
+
+	ClassMetrics(final String location, final String path, final String packageName, final String sourceFileName, final String name, final long id,
+			final int complexity, final int lines, final int methodCount, final List<Method> methods,
+			final int[] coverage, final int[] bytecode) {
+		this.location = location;
+		this.path = path;
+		this.packageName = packageName;
+		this.sourceFileName = sourceFileName;
+		this.name = name;
+		this.id = id;
+		this.complexity = complexity;
+		this.lines = lines;
+		this.methodCount = methodCount;
+		this.methods = methods;
+		this.coverage = coverage;
+		this.bytecode = bytecode;
+	}
+
+	/**
+	 * Extracts the metrics of the given class coverage.
+	 *
+	 * @param location
+	 *            directory or archive the class was read from
+	 * @param path
+	 *            full name of the class file
+	 */
+	static ClassMetrics of(final String location, final String path, final IClassCoverage cc) {
+		return of(location, path, cc, false);
+	}
+
+	/**
+	 * Extracts the metrics of the given class coverage.
+	 *
+	 * @param withCoverage
+	 *            also keep the covered and missed counts, when the analysis
+	 *            had execution data
+	 */
+	static ClassMetrics of(final String location, final String path, final IClassCoverage cc,
+			final boolean withCoverage) {
+		final List<Method> methods = new ArrayList<Method>(cc.getMethods().size());
+		for (IMethodCoverage mc : cc.getMethods()) {
+			methods.add(new Method(mc.getName(), MethodDescriptor.intern(mc.getDesc()),
+					mc.getComplexityCounter().getTotalCount(), mc.getLineCounter().getTotalCount(),
+					withCoverage ? coverage(mc) : null));
+		}
+		return new ClassMetrics(location, path, cc.getPackageName(), cc.getSourceFileName(), cc.getName(), cc.getId(),
+				cc.getComplexityCounter().getTotalCount(), cc.getLineCounter().getTotalCount(),
+				cc.getMethodCounter().getTotalCount(), Collections.unmodifiableList(methods),
+				withCoverage ? coverage(cc) : null, null);
+	}
+
+	/**
+	 * @return covered and missed counts of instructions, branches, lines and
+	 *         complexity, in the order of {@link MetricsRecorder#COVERAGE}
+	 */
+	static int[] coverage(final ICoverageNode node) {
+		final int[] coverage = new int[8];
+		int i = 0;
+		for (ICounter counter : new ICounter[] { node.getInstructionCounter(), node.getBranchCounter(),
+				node.getLineCounter(), node.getComplexityCounter() }) {
+			coverage[i++] = counter.getCoveredCount();
+			coverage[i++] = counter.getMissedCount();
+		}
+		return coverage;
+	}
+
+	/**
+	 * The values of one method.
+	 */
+	static final class Method {
+
+		final String name;
+		final MethodDescriptor descriptor;
+		/** shared <code>"name desc"</code> key of method_metrics */
+		final String key;
+		final int complexity;
+		final int lines;
+		final int[] coverage;
+
+		Method(final String name, final MethodDescriptor descriptor, final int complexity, final int lines,
+				final int[] coverage) {
+			this.key = descriptor.key(name);
+			this.name = name;
+			this.descriptor = descriptor;
+			this.complexity = complexity;
+			this.lines = lines;
+			this.coverage = coverage;
+		}
+
+	}
+
+}
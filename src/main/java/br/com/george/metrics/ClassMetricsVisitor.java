@@ -0,0 +1,11 @@
+package br.com.george.metrics;
+
+/**
+ * Receives the metrics of every analyzed class. Implementations are called
+ * from all analysis threads and must be thread safe.
+ */
+interface ClassMetricsVisitor {
+
+	void visit(ClassMetrics cm);
+
+}
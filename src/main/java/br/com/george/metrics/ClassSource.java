@@ -0,0 +1,283 @@
+package br.com.george.metrics;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * One unit of analysis work: a class file on disk, a class entry of an
+ * archive, or a nested archive whose classes are read in one pass.
+ */
+abstract class ClassSource {
+
+	/**
+	 * Receives the bytes of every class of a source.
+	 */
+	interface Handler {
+
+		/**
+		 * @param location
+		 *            the directory or archive the class was found in
+		 * @param name
+		 *            full name of the class file, used in messages
+		 * @param bytes
+		 *            content of the class file
+		 */
+		void handle(String location, String name, byte[] bytes) throws IOException;
+
+	}
+
+	final String location;
+	final String name;
+
+	ClassSource(final String location, final String name) {
+		this.location = location;
+		this.name = name;
+	}
+
+	/**
+	 * Reads the class(es) of this source and passes them to the handler.
+	 */
+	abstract void read(Handler handler) throws IOException;
+
+	/**
+	 * @return size in bytes as reported by the file system or archive
+	 */
+	abstract long size();
+
+	/**
+	 * @return modification time as reported by the file system or archive
+	 */
+	abstract long lastModified();
+
+	/**
+	 * @return <code>true</code> if this source is a single class file named
+	 *         {@link #name}
+	 */
+	boolean isSingleClass() {
+		return true;
+	}
+
+	static boolean isArchive(final String name) {
+		final String lower = name.toLowerCase();
+		return lower.endsWith(".jar") || lower.endsWith(".war") || lower.endsWith(".ear") || lower.endsWith(".zip");
+	}
+
+	/**
+	 * Tells whether an archive entry is a class to analyze. Multi-release
+	 * variants under META-INF/versions share the name of the base class and
+	 * are skipped, like the <code>module-info</code> and
+	 * <code>package-info</code> descriptors, which have no code and the same
+	 * name in every archive.
+	 */
+	static boolean isClassEntry(final String name) {
+		if (!name.endsWith(".class") || name.startsWith("META-INF/versions/")) {
+			return false;
+		}
+		final String file = name.substring(name.lastIndexOf('/') + 1);
+		return !"module-info.class".equals(file) && !"package-info.class".equals(file);
+	}
+
+	/**
+	 * A class file on disk.
+	 */
+	static final class FileSource extends ClassSource {
+
+		private final Path file;
+		private final long size;
+		private final long lastModified;
+
+		/**
+		 * @param size
+		 *            size found while walking the directory
+		 * @param lastModified
+		 *            modification time found while walking the directory
+		 */
+		FileSource(final String location, final Path file, final long size, final long lastModified) {
+			super(location, file.toAbsolutePath().toString());
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		void read(final Handler handler) throws IOException {
+			handler.handle(location, name, ClassFileReader.read(file));
+		}
+
+		@Override
+		long size() {
+			return size;
+		}
+
+		@Override
+		long lastModified() {
+			return lastModified;
+		}
+
+	}
+
+	/**
+	 * A class entry of an archive opened with random access, so entries of
+	 * the same archive can be read by several workers.
+	 */
+	static final class EntrySource extends ClassSource {
+
+		private final ZipFile zip;
+		private final ZipEntry entry;
+
+		EntrySource(final String location, final ZipFile zip, final ZipEntry entry) {
+			super(location, location + "!/" + entry.getName());
+			this.zip = zip;
+			this.entry = entry;
+		}
+
+		@Override
+		void read(final Handler handler) throws IOException {
+			final byte[] bytes;
+			try (InputStream in = zip.getInputStream(entry)) {
+				bytes = entry.getSize() < 0 ? IOUtils.toByteArray(in) : IOUtils.toByteArray(in, entry.getSize());
+			}
+			handler.handle(location, name, bytes);
+		}
+
+		@Override
+		long size() {
+			return entry.getSize();
+		}
+
+		@Override
+		long lastModified() {
+			return entry.getTime();
+		}
+
+	}
+
+	/**
+	 * An archive stored inside another archive, like the libraries of a
+	 * Spring Boot jar, a war or an ear. Nested archives can't be opened with
+	 * random access without extracting them, so they are streamed by a
+	 * single worker, including the archives nested in them.
+	 */
+	static final class NestedSource extends ClassSource {
+
+		private final ZipFile zip;
+		private final ZipEntry entry;
+
+		NestedSource(final String location, final ZipFile zip, final ZipEntry entry) {
+			super(location + "!/" + entry.getName(), location + "!/" + entry.getName());
+			this.zip = zip;
+			this.entry = entry;
+		}
+
+		@Override
+		void read(final Handler handler) throws IOException {
+			try (InputStream in = zip.getInputStream(entry)) {
+				read(location, new ZipInputStream(in), handler);
+			}
+		}
+
+		@Override
+		long size() {
+			return entry.getSize();
+		}
+
+		@Override
+		long lastModified() {
+			return entry.getTime();
+		}
+
+		@Override
+		boolean isSingleClass() {
+			return false;
+		}
+
+		private static void read(final String location, final ZipInputStream zin, final Handler handler)
+				throws IOException {
+			ZipEntry e;
+			while ((e = zin.getNextEntry()) != null) {
+				if (e.isDirectory()) {
+					continue;
+				}
+				if (isClassEntry(e.getName())) {
+					handler.handle(location, location + "!/" + e.getName(), IOUtils.toByteArray(zin));
+				} else if (isArchive(e.getName())) {
+					read(location + "!/" + e.getName(), new ZipInputStream(new Unclosable(zin)), handler);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Another source whose classes are passed on only when a
+	 * {@link ClassFilter} keeps them. The test uses the name read from the
+	 * class file, which is the only one available for archive entries and
+	 * is right even where the path does not follow the package.
+	 */
+	static final class Filtered extends ClassSource {
+
+		private final ClassSource source;
+		private final ClassFilter filter;
+
+		Filtered(final ClassSource source, final ClassFilter filter) {
+			super(source.location, source.name);
+			this.source = source;
+			this.filter = filter;
+		}
+
+		@Override
+		void read(final Handler handler) throws IOException {
+			source.read(new Handler() {
+				public void handle(final String location, final String name, final byte[] bytes)
+						throws IOException {
+					final boolean kept;
+					try {
+						kept = filter.accepts(bytes);
+					} catch (RuntimeException e) {
+						throw new IOException(String.format("Error while reading the class name of %s.", name), e);
+					}
+					if (kept) {
+						handler.handle(location, name, bytes);
+					}
+				}
+			});
+		}
+
+		@Override
+		long size() {
+			return source.size();
+		}
+
+		@Override
+		long lastModified() {
+			return source.lastModified();
+		}
+
+		@Override
+		boolean isSingleClass() {
+			return source.isSingleClass();
+		}
+
+	}
+
+	private static final class Unclosable extends FilterInputStream {
+
+		Unclosable(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public void close() {
+			// the enclosing stream is closed by its owner
+		}
+
+	}
+
+}
@@ -0,0 +1,129 @@
+package br.com.george.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory tree of class files for <code>--watch</code>. The
+ * events of a compile come in bursts, so they are coalesced until the tree
+ * has been quiet for {@link #DEBOUNCE_MILLIS} (or for at most
+ * {@link #MAX_WAIT_MILLIS}) and handed out as one batch.
+ */
+final class ClassWatcher implements Closeable {
+
+	static final long DEBOUNCE_MILLIS = 200;
+	static final long MAX_WAIT_MILLIS = 2000;
+
+	private final WatchService service;
+	private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+	/**
+	 * Registers every directory of the tree. Changes made from now on are
+	 * reported, including the ones made while a first full run is going on.
+	 */
+	ClassWatcher(final Path root) throws IOException {
+		service = root.getFileSystem().newWatchService();
+		register(root, null);
+	}
+
+	/**
+	 * Blocks until class files change and returns them once the burst of
+	 * events is over.
+	 *
+	 * @return the class files created, modified or deleted, and the
+	 *         directories deleted or moved away; <code>null</code> when
+	 *         events were lost and the whole tree must be scanned again
+	 */
+	Set<Path> next() throws IOException, InterruptedException {
+		final Set<Path> changed = new TreeSet<Path>();
+		boolean complete = collect(service.take(), changed);
+		final long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+		WatchKey key;
+		while (System.currentTimeMillis() < deadline
+				&& (key = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+			complete &= collect(key, changed);
+		}
+		return complete ? changed : null;
+	}
+
+	private boolean collect(final WatchKey key, final Set<Path> changed) throws IOException {
+		final Path dir = directories.get(key);
+		boolean complete = dir != null;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				complete = false;
+				continue;
+			}
+			if (dir == null) {
+				continue;
+			}
+			final Path child = dir.resolve((Path) event.context());
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+					&& Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+				// a directory created or moved in: its class files are new
+				register(child, changed);
+			} else if (isClassFile(child) || event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				changed.add(child);
+			}
+		}
+		if (!key.reset()) {
+			directories.remove(key);
+		}
+		return complete;
+	}
+
+	private static boolean isClassFile(final Path file) {
+		return file.getFileName().toString().endsWith(".class");
+	}
+
+	/**
+	 * Registers a directory tree, adding its class files to
+	 * <code>found</code> when not <code>null</code>.
+	 */
+	private void register(final Path root, final Set<Path> found) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+					throws IOException {
+				directories.put(dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+				if (found != null && attrs.isRegularFile() && isClassFile(file)) {
+					found.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+				// deleted again while registering, the next events tell
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Override
+	public void close() throws IOException {
+		service.close();
+	}
+
+}
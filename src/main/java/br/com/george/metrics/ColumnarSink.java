@@ -0,0 +1,228 @@
+package br.com.george.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the metric rows to a compact binary columnar file. Strings are
+ * dictionary encoded and every table is buffered column by column and
+ * written in blocks of up to {@link #BLOCK_ROWS} rows through a
+ * {@link FileChannel}.
+ * <p>
+ * Layout, big endian:
+ * <pre>
+ * file    := "MCOL" version:int block*
+ * block   := STRINGS count:int (length:int utf8-bytes)*   (length -1 = null)
+ *          | table:byte rows:int (ids:int[rows])* values:double[rows]?
+ * </pre>
+ * String ids are assigned in order of appearance starting at 0 and every
+ * new string is written in a STRINGS block before the first rows using it.
+ * The tables and their string columns are:
+ * <ul>
+ * <li>1 package_metrics: package, metric</li>
+ * <li>2 file_metrics: package, file, metric</li>
+ * <li>3 class_metrics: package, file, class, metric</li>
+ * <li>4 method_metrics: package, file, class, method, metric</li>
+ * <li>5 class_locations: package, file, class, location (no values)</li>
+ * </ul>
+ */
+final class ColumnarSink implements MetricsSink {
+
+	static final int VERSION = 1;
+	static final byte STRINGS = 0;
+	static final int BLOCK_ROWS = 1 << 14;
+
+	private final FileChannel channel;
+	private final RunStats stats;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> pending = new ArrayList<String>();
+
+	private final Table packages = new Table(1, 2, true);
+	private final Table files = new Table(2, 3, true);
+	private final Table classes = new Table(3, 4, true);
+	private final Table methods = new Table(4, 5, true);
+	private final Table locations = new Table(5, 4, false);
+
+	/**
+	 * Creates or replaces the given file.
+	 *
+	 * @param stats
+	 *            receives the time of every buffer written
+	 * @throws IOException
+	 *             if the file can't be created
+	 */
+	ColumnarSink(final File file, final RunStats stats) throws IOException {
+		this.stats = stats;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		buffer.put("MCOL".getBytes(StandardCharsets.US_ASCII));
+		buffer.putInt(VERSION);
+	}
+
+	public void insertPackage(final String pkg, final String metric, final double value) throws IOException {
+		packages.row(value, id(pkg), id(metric));
+	}
+
+	public void insertFile(final String pkg, final String file, final String metric, final double value)
+			throws IOException {
+		files.row(value, id(pkg), id(file), id(metric));
+	}
+
+	public void insertClass(final String pkg, final String file, final String cls, final String metric,
+			final double value) throws IOException {
+		classes.row(value, id(pkg), id(file), id(cls), id(metric));
+	}
+
+	public void insertMethod(final String pkg, final String file, final String cls, final String method,
+			final String metric, final double value) throws IOException {
+		methods.row(value, id(pkg), id(file), id(cls), id(method), id(metric));
+	}
+
+	public void insertLocation(final String pkg, final String file, final String cls, final String location)
+			throws IOException {
+		locations.row(0, id(pkg), id(file), id(cls), id(location));
+	}
+
+	/**
+	 * Writes the partial blocks and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			for (Table table : new Table[] { packages, files, classes, methods, locations }) {
+				table.write();
+			}
+			drain();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private int id(final String s) {
+		final Integer id = ids.get(s);
+		if (id != null) {
+			return id.intValue();
+		}
+		final int next = ids.size();
+		ids.put(s, Integer.valueOf(next));
+		pending.add(s);
+		return next;
+	}
+
+	private void writeStrings() throws IOException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		reserve(5);
+		buffer.put(STRINGS);
+		buffer.putInt(pending.size());
+		for (String s : pending) {
+			if (s == null) {
+				reserve(4);
+				buffer.putInt(-1);
+				continue;
+			}
+			final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			reserve(4);
+			buffer.putInt(bytes.length);
+			for (int off = 0; off < bytes.length;) {
+				reserve(1);
+				final int n = Math.min(buffer.remaining(), bytes.length - off);
+				buffer.put(bytes, off, n);
+				off += n;
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Makes room for at least <code>n</code> bytes, <code>n</code> must not
+	 * exceed the buffer capacity.
+	 */
+	private void reserve(final int n) throws IOException {
+		if (buffer.remaining() < n) {
+			drain();
+		}
+	}
+
+	private void drain() throws IOException {
+		final long wall = System.nanoTime();
+		final long cpu = RunStats.cpuTime();
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+		stats.since(RunStats.Phase.WRITE, wall, cpu);
+		stats.batchWrite.record(System.nanoTime() - wall);
+	}
+
+	/**
+	 * Column buffers of one table.
+	 */
+	private final class Table {
+
+		private final byte tag;
+		private final int[][] columns;
+		private final double[] values;
+		private int size;
+
+		Table(final int tag, final int columns, final boolean values) {
+			this.tag = (byte) tag;
+			this.columns = new int[columns][BLOCK_ROWS];
+			this.values = values ? new double[BLOCK_ROWS] : null;
+		}
+
+		void row(final double value, final int... ids) throws IOException {
+			for (int c = 0; c < ids.length; c++) {
+				columns[c][size] = ids[c];
+			}
+			if (values != null) {
+				values[size] = value;
+			}
+			if (++size == BLOCK_ROWS) {
+				write();
+			}
+		}
+
+		void write() throws IOException {
+			if (size == 0) {
+				return;
+			}
+			writeStrings();
+			reserve(5);
+			buffer.put(tag);
+			buffer.putInt(size);
+			for (int[] column : columns) {
+				for (int i = 0; i < size;) {
+					reserve(4);
+					final int n = Math.min(size - i, buffer.remaining() / 4);
+					buffer.asIntBuffer().put(column, i, n);
+					buffer.position(buffer.position() + n * 4);
+					i += n;
+				}
+			}
+			if (values != null) {
+				for (int i = 0; i < size;) {
+					reserve(8);
+					final int n = Math.min(size - i, buffer.remaining() / 8);
+					buffer.asDoubleBuffer().put(values, i, n);
+					buffer.position(buffer.position() + n * 8);
+					i += n;
+				}
+			}
+			size = 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,178 @@
+package br.com.george.metrics;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Distribution of every metric at method, class, file and package level,
+ * written to metric_distributions and metric_distribution_bins so that
+ * percentiles and histograms need no scan of the metric tables.
+ */
+final class Distributions {
+
+	static final String METHOD = "method";
+	static final String CLASS = "class";
+	static final String FILE = "file";
+	static final String PACKAGE = "package";
+
+	private static String methodSql = "SELECT metric, value FROM method_metrics WHERE package=?";
+	private static String classSql = "SELECT metric, value FROM class_metrics WHERE package=?";
+	private static String fileSql = "SELECT metric, value FROM file_metrics WHERE package=?";
+	private static String pkgSql = "SELECT metric, value FROM package_metrics WHERE package=?";
+	private static String sketchSql = "SELECT package, level, metric, sketch FROM metric_sketches";
+
+	/** level, metric: sorted so that the rows are written in key order */
+	private final Map<String, Map<String, MetricDistribution>> levels = new TreeMap<String, Map<String, MetricDistribution>>();
+
+	void add(final String level, final String metric, final double value) {
+		get(level, metric).add(value);
+	}
+
+	void merge(final String level, final String metric, final MetricDistribution distribution) {
+		get(level, metric).merge(distribution);
+	}
+
+	void merge(final Distributions other) {
+		for (Map.Entry<String, Map<String, MetricDistribution>> level : other.levels.entrySet()) {
+			for (Map.Entry<String, MetricDistribution> metric : level.getValue().entrySet()) {
+				merge(level.getKey(), metric.getKey(), metric.getValue());
+			}
+		}
+	}
+
+	boolean isEmpty() {
+		return levels.isEmpty();
+	}
+
+	private MetricDistribution get(final String level, final String metric) {
+		Map<String, MetricDistribution> metrics = levels.get(level);
+		if (metrics == null) {
+			metrics = new TreeMap<String, MetricDistribution>();
+			levels.put(level, metrics);
+		}
+		MetricDistribution distribution = metrics.get(metric);
+		if (distribution == null) {
+			distribution = new MetricDistribution();
+			metrics.put(metric, distribution);
+		}
+		return distribution;
+	}
+
+	/**
+	 * Writes the percentiles and the non empty bins of every distribution.
+	 */
+	void write(final SqliteWriter writer) throws SQLException {
+		for (Map.Entry<String, Map<String, MetricDistribution>> level : levels.entrySet()) {
+			for (Map.Entry<String, MetricDistribution> metric : level.getValue().entrySet()) {
+				final MetricDistribution d = metric.getValue();
+				writer.insertDistribution(level.getKey(), metric.getKey(), d);
+				for (int i = 0; i < d.binCount(); i++) {
+					if (d.bin(i) > 0) {
+						writer.insertDistributionBin(level.getKey(), metric.getKey(), MetricDistribution.lower(i),
+								MetricDistribution.upper(i), d.bin(i));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the sketches of one package to metric_sketches, so a later
+	 * incremental run can merge them without reading the package rows.
+	 */
+	void writeSketches(final SqliteWriter writer, final String pkg) throws SQLException {
+		for (Map.Entry<String, Map<String, MetricDistribution>> level : levels.entrySet()) {
+			for (Map.Entry<String, MetricDistribution> metric : level.getValue().entrySet()) {
+				writer.insertSketch(pkg, level.getKey(), metric.getKey(), metric.getValue().toBytes());
+			}
+		}
+	}
+
+	/**
+	 * Builds the distributions of one package from the rows of the metric
+	 * tables.
+	 */
+	static Distributions read(final Connection conn, final String pkg) throws SQLException {
+		final Distributions distributions = new Distributions();
+		distributions.read(conn, methodSql, pkg, METHOD);
+		distributions.read(conn, classSql, pkg, CLASS);
+		distributions.read(conn, fileSql, pkg, FILE);
+		distributions.read(conn, pkgSql, pkg, PACKAGE);
+		return distributions;
+	}
+
+	private void read(final Connection conn, final String sql, final String pkg, final String level)
+			throws SQLException {
+		try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setString(1, pkg);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					add(level, rs.getString(1), rs.getDouble(2));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the stored sketches of every package except the given ones.
+	 */
+	void mergeSketches(final Connection conn, final Set<String> skipped) throws SQLException, IOException {
+		try (PreparedStatement pstmt = conn.prepareStatement(sketchSql);
+				ResultSet rs = pstmt.executeQuery()) {
+			while (rs.next()) {
+				if (!skipped.contains(rs.getString(1))) {
+					merge(rs.getString(2), rs.getString(3), MetricDistribution.fromBytes(rs.getBytes(4)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a sink forwarding every row to the given one and adding its
+	 * value to these distributions. Closing it does not close the wrapped
+	 * sink, which stays owned by the caller.
+	 */
+	MetricsSink observe(final MetricsSink sink) {
+		return new MetricsSink() {
+
+			public void insertPackage(final String pkg, final String metric, final double value) throws Exception {
+				add(PACKAGE, metric, value);
+				sink.insertPackage(pkg, metric, value);
+			}
+
+			public void insertFile(final String pkg, final String file, final String metric, final double value)
+					throws Exception {
+				add(FILE, metric, value);
+				sink.insertFile(pkg, file, metric, value);
+			}
+
+			public void insertClass(final String pkg, final String file, final String cls, final String metric,
+					final double value) throws Exception {
+				add(CLASS, metric, value);
+				sink.insertClass(pkg, file, cls, metric, value);
+			}
+
+			public void insertMethod(final String pkg, final String file, final String cls, final String method,
+					final String metric, final double value) throws Exception {
+				add(METHOD, metric, value);
+				sink.insertMethod(pkg, file, cls, method, metric, value);
+			}
+
+			public void insertLocation(final String pkg, final String file, final String cls, final String location)
+					throws Exception {
+				sink.insertLocation(pkg, file, cls, location);
+			}
+
+			public void close() {
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,164 @@
+package br.com.george.metrics;
+
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataReader;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.data.ISessionInfoVisitor;
+import org.jacoco.core.data.SessionInfo;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Loads and merges the JaCoCo execution data of many <code>.exec</code>
+ * files. Each thread reads whole files into its own partial
+ * {@link ExecutionDataStore}, merging the probes of every class as they are
+ * read, and the partial stores are then merged pairwise in a tree. Memory
+ * is bounded by one store per thread, whatever the number of files.
+ */
+final class ExecLoader {
+
+	private static final ISessionInfoVisitor NO_SESSIONS = new ISessionInfoVisitor() {
+		public void visitSessionInfo(final SessionInfo info) {
+		}
+	};
+
+	private ExecLoader() {
+	}
+
+	/**
+	 * Lists the exec files of the given paths: files as given, directories
+	 * searched recursively for <code>*.exec</code>.
+	 */
+	static List<File> files(final List<String> paths) throws IOException {
+		final List<File> files = new ArrayList<File>();
+		for (String path : paths) {
+			final File file = new File(path);
+			if (!file.isDirectory()) {
+				if (!file.isFile()) {
+					throw new IOException("Exec file not found: " + path);
+				}
+				files.add(file);
+				continue;
+			}
+			try (Stream<Path> walk = Files.walk(file.toPath())) {
+				final List<Path> found = walk.filter(p -> p.toString().endsWith(".exec") && Files.isRegularFile(p))
+						.sorted().collect(Collectors.toList());
+				for (Path p : found) {
+					files.add(p.toFile());
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Reads and merges the given exec files.
+	 *
+	 * @param threads
+	 *            number of files read at the same time
+	 * @throws IOException
+	 *             if a file can't be read, or two files disagree on a class
+	 */
+	static ExecutionDataStore load(final List<File> files, final int threads) throws IOException {
+		final int workers = Math.max(1, Math.min(threads, files.size()));
+		final ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			final AtomicInteger next = new AtomicInteger();
+			final List<Future<ExecutionDataStore>> loads = new ArrayList<Future<ExecutionDataStore>>();
+			for (int i = 0; i < workers; i++) {
+				loads.add(executor.submit(new Callable<ExecutionDataStore>() {
+					public ExecutionDataStore call() throws IOException {
+						final ExecutionDataStore store = new ExecutionDataStore();
+						for (int n; (n = next.getAndIncrement()) < files.size();) {
+							read(files.get(n), store);
+						}
+						return store;
+					}
+				}));
+			}
+			List<ExecutionDataStore> stores = new ArrayList<ExecutionDataStore>();
+			for (Future<ExecutionDataStore> load : loads) {
+				stores.add(get(load));
+			}
+			while (stores.size() > 1) {
+				final List<Future<ExecutionDataStore>> merges = new ArrayList<Future<ExecutionDataStore>>();
+				for (int i = 0; i + 1 < stores.size(); i += 2) {
+					final ExecutionDataStore into = stores.get(i);
+					final ExecutionDataStore from = stores.get(i + 1);
+					merges.add(executor.submit(new Callable<ExecutionDataStore>() {
+						public ExecutionDataStore call() {
+							return merge(into, from);
+						}
+					}));
+				}
+				final List<ExecutionDataStore> merged = new ArrayList<ExecutionDataStore>();
+				for (Future<ExecutionDataStore> merge : merges) {
+					merged.add(get(merge));
+				}
+				if (stores.size() % 2 != 0) {
+					merged.add(stores.get(stores.size() - 1));
+				}
+				stores = merged;
+			}
+			return stores.isEmpty() ? new ExecutionDataStore() : stores.get(0);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void read(final File file, final ExecutionDataStore store) throws IOException {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()), 1 << 16)) {
+			final ExecutionDataReader reader = new ExecutionDataReader(in);
+			reader.setExecutionDataVisitor(store);
+			reader.setSessionInfoVisitor(NO_SESSIONS);
+			reader.read();
+		} catch (IOException | IllegalStateException e) {
+			throw new IOException("Can't read exec file " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Merges the probes of <code>from</code> into <code>into</code>; the
+	 * data objects of <code>from</code> may be taken over.
+	 */
+	private static ExecutionDataStore merge(final ExecutionDataStore into, final ExecutionDataStore from) {
+		for (ExecutionData data : from.getContents()) {
+			into.put(data);
+		}
+		return into;
+	}
+
+	private static ExecutionDataStore get(final Future<ExecutionDataStore> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading exec files", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+}
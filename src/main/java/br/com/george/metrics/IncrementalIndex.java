@@ -0,0 +1,337 @@
+package br.com.george.metrics;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content hashes of the class files of a previous run, stored in the
+ * class_files table. Used by <code>--incremental</code> to analyze only new
+ * or changed class files and to update the rows of the existing database.
+ * <p>
+ * A class file whose size and modification time are unchanged is not read
+ * at all. Otherwise its SHA-1 is compared with the stored one, so a rebuild
+ * that only touches files costs a read but no analysis.
+ */
+final class IncrementalIndex {
+
+	static final String TABLE_SQL = "create table if not exists class_files( path varchar, size integer, mtime integer, hash varchar, package varchar, file varchar, class varchar, PRIMARY KEY (path))";
+	/** distribution sketches per package, merged into metric_distributions */
+	static final String SKETCH_TABLE_SQL = "create table if not exists metric_sketches( package varchar, level varchar, metric varchar, sketch blob, PRIMARY KEY (package, level, metric))";
+
+	private static String classRollupSql = "SELECT file, class, metric, value FROM class_metrics WHERE package=? AND metric IN (?,?)";
+	private static String methodRollupSql = "SELECT file, class, count(*) FROM method_metrics WHERE package=? AND metric=? GROUP BY file, class";
+
+	private final Map<String, Record> previous;
+	private final Map<String, Record> current = new ConcurrentHashMap<String, Record>();
+
+	private IncrementalIndex(final Map<String, Record> previous) {
+		this.previous = previous;
+	}
+
+	/**
+	 * Tells whether the given database was written by an incremental run.
+	 * Databases of older versions, without sketches, are rebuilt.
+	 */
+	static boolean exists(final String sqlfile) throws SQLException {
+		if (!new File(sqlfile).isFile()) {
+			return false;
+		}
+		try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + sqlfile);
+				Statement st = conn.createStatement();
+				ResultSet rs = st.executeQuery(
+						"SELECT count(*) FROM sqlite_master WHERE type='table' AND name IN ('class_files', 'metric_sketches')")) {
+			return rs.next() && rs.getInt(1) == 2;
+		}
+	}
+
+	/**
+	 * Loads the index of the previous run.
+	 */
+	static IncrementalIndex load(final Connection conn) throws SQLException {
+		final Map<String, Record> previous = new HashMap<String, Record>();
+		try (Statement st = conn.createStatement();
+				ResultSet rs = st.executeQuery("SELECT path, size, mtime, hash, package, file, class FROM class_files")) {
+			while (rs.next()) {
+				final Record record = new Record(rs.getLong(2), rs.getLong(3), rs.getString(4));
+				record.packageName = rs.getString(5);
+				record.sourceFileName = rs.getString(6);
+				record.className = rs.getString(7);
+				previous.put(rs.getString(1), record);
+			}
+		}
+		return new IncrementalIndex(previous);
+	}
+
+	/**
+	 * Returns the index to use for the next update of the same database:
+	 * the state after this run becomes the previous one.
+	 */
+	IncrementalIndex next() {
+		for (Record record : current.values()) {
+			record.dirty = false;
+			record.analyzed = false;
+		}
+		return new IncrementalIndex(new HashMap<String, Record>(current));
+	}
+
+	/**
+	 * Keeps every class file of the previous run except the given ones, and
+	 * the ones inside the given directories, without looking at them. Used
+	 * when only the changed files are scanned.
+	 */
+	void keepUnchanged(final Collection<Path> changed) {
+		final Set<Path> paths = new HashSet<Path>();
+		for (Path path : changed) {
+			paths.add(path.toAbsolutePath());
+		}
+		for (Map.Entry<String, Record> e : previous.entrySet()) {
+			boolean keep = true;
+			for (Path p = Paths.get(e.getKey()); p != null && keep; p = p.getParent()) {
+				keep = !paths.contains(p);
+			}
+			if (keep) {
+				current.put(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Pre-check before a source is read: a single class file with the same
+	 * size and modification time as in the previous run is unchanged.
+	 */
+	boolean unchanged(final ClassSource source) {
+		if (!source.isSingleClass()) {
+			return false;
+		}
+		final Record record = previous.get(source.name);
+		if (record != null && record.size == source.size() && record.mtime == source.lastModified()) {
+			current.put(source.name, record);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tells whether the content of a class file differs from the previous
+	 * run and registers it in the new index.
+	 */
+	boolean changed(final String path, final byte[] bytes, final long mtime) {
+		final String hash = hash(bytes);
+		final Record record = previous.get(path);
+		if (record != null && record.hash.equals(hash)) {
+			final Record touched = new Record(bytes.length, mtime, hash);
+			touched.packageName = record.packageName;
+			touched.sourceFileName = record.sourceFileName;
+			touched.className = record.className;
+			touched.dirty = true;
+			current.put(path, touched);
+			return false;
+		}
+		final Record added = new Record(bytes.length, mtime, hash);
+		added.dirty = true;
+		added.analyzed = true;
+		current.put(path, added);
+		return true;
+	}
+
+	/**
+	 * Records the class produced by an analyzed class file.
+	 */
+	void analyzed(final ClassMetrics cm) {
+		final Record record = current.get(cm.path);
+		record.packageName = cm.packageName;
+		record.sourceFileName = cm.sourceFileName;
+		record.className = cm.name;
+	}
+
+	/**
+	 * Applies the outcome of the analysis to the database: rows of removed
+	 * and changed classes are deleted, the analyzed classes are written and
+	 * the rollups of every affected package are recomputed from the class
+	 * rows. The distribution sketches of the affected packages are rebuilt
+	 * from their rows and merged with the stored sketches of the others.
+	 *
+	 * @param classes
+	 *            the analyzed classes
+	 * @param stats
+	 *            statistics of the run
+	 */
+	void apply(final Connection conn, final SqliteWriter writer, final Collection<ClassMetrics> classes,
+			final RunStats stats, final PrintStream out) throws Exception {
+		final Set<List<String>> kept = new HashSet<List<String>>();
+		final Set<List<String>> deleted = new HashSet<List<String>>();
+		final Set<String> packages = new HashSet<String>();
+		int removed = 0;
+		for (Map.Entry<String, Record> e : previous.entrySet()) {
+			final Record now = current.get(e.getKey());
+			if (now == null) {
+				writer.deleteClassFile(e.getKey());
+				removed++;
+			}
+			if ((now == null || now.analyzed) && e.getValue().className != null) {
+				deleted.add(e.getValue().identity());
+			}
+		}
+		for (Record record : current.values()) {
+			if (!record.analyzed && record.className != null) {
+				kept.add(record.identity());
+			}
+		}
+		// a class still present in an unchanged file keeps its rows
+		deleted.removeAll(kept);
+		for (ClassMetrics cm : classes) {
+			deleted.add(Arrays.asList(cm.packageName, cm.sourceFileName, cm.name));
+		}
+		for (List<String> identity : deleted) {
+			writer.deleteClass(identity.get(0), identity.get(2));
+			packages.add(identity.get(0));
+		}
+		for (String pkg : packages) {
+			writer.deletePackage(pkg);
+		}
+		writer.flush();
+
+		final MetricsRecorder recorder = new MetricsRecorder(writer, stats);
+		final Set<List<String>> written = new HashSet<List<String>>();
+		for (ClassMetrics cm : classes) {
+			recorder.record(cm);
+			written.add(Arrays.asList(cm.packageName, cm.sourceFileName, cm.name));
+		}
+		writer.flush();
+		for (String pkg : packages) {
+			rollup(conn, pkg, written, recorder);
+		}
+		recorder.finish();
+		writer.flush();
+		distributions(conn, writer, packages);
+
+		for (Map.Entry<String, Record> e : current.entrySet()) {
+			final Record record = e.getValue();
+			if (record.dirty) {
+				writer.insertClassFile(e.getKey(), record.size, record.mtime, record.hash, record.packageName,
+						record.sourceFileName, record.className);
+			}
+		}
+		out.println("Incremental: " + classes.size() + " classes analyzed, " + removed + " class files removed, "
+				+ packages.size() + " packages updated");
+	}
+
+	private static void distributions(final Connection conn, final SqliteWriter writer, final Set<String> packages)
+			throws Exception {
+		final Distributions all = new Distributions();
+		for (String pkg : packages) {
+			final Distributions distributions = Distributions.read(conn, pkg);
+			distributions.writeSketches(writer, pkg);
+			all.merge(distributions);
+		}
+		all.mergeSketches(conn, packages);
+		try (Statement st = conn.createStatement()) {
+			st.executeUpdate("DELETE FROM metric_distributions");
+			st.executeUpdate("DELETE FROM metric_distribution_bins");
+		}
+		all.write(writer);
+	}
+
+	/**
+	 * Adds the classes of a package that were not analyzed in this run to the
+	 * rollups, reading their values back from class_metrics.
+	 */
+	private static void rollup(final Connection conn, final String pkg, final Set<List<String>> written,
+			final MetricsRecorder recorder) throws SQLException {
+		final Map<List<String>, double[]> values = new HashMap<List<String>, double[]>();
+		try (PreparedStatement pstmt = conn.prepareStatement(classRollupSql)) {
+			pstmt.setString(1, pkg);
+			pstmt.setString(2, MetricsRecorder.Cyclomatic);
+			pstmt.setString(3, MetricsRecorder.CountLineCode);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					final List<String> identity = Arrays.asList(pkg, rs.getString(1), rs.getString(2));
+					if (written.contains(identity)) {
+						continue;
+					}
+					double[] v = values.get(identity);
+					if (v == null) {
+						v = new double[3];
+						values.put(identity, v);
+					}
+					v[MetricsRecorder.Cyclomatic.equals(rs.getString(3)) ? 0 : 1] = rs.getDouble(4);
+				}
+			}
+		}
+		try (PreparedStatement pstmt = conn.prepareStatement(methodRollupSql)) {
+			pstmt.setString(1, pkg);
+			pstmt.setString(2, MetricsRecorder.Cyclomatic);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					final double[] v = values.get(Arrays.asList(pkg, rs.getString(1), rs.getString(2)));
+					if (v != null) {
+						v[2] = rs.getInt(3);
+					}
+				}
+			}
+		}
+		for (Map.Entry<List<String>, double[]> e : values.entrySet()) {
+			final double[] v = e.getValue();
+			recorder.rollup(pkg, e.getKey().get(1), v[0], v[1], (int) v[2]);
+		}
+	}
+
+	private static String hash(final byte[] bytes) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		final byte[] sha = digest.digest(bytes);
+		final StringBuilder sb = new StringBuilder(sha.length * 2);
+		for (byte b : sha) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private static final class Record {
+
+		final long size;
+		final long mtime;
+		final String hash;
+		String packageName;
+		String sourceFileName;
+		String className;
+		/** needs to be written to class_files */
+		boolean dirty;
+		/** analyzed in this run */
+		boolean analyzed;
+
+		Record(final long size, final long mtime, final String hash) {
+			this.size = size;
+			this.mtime = mtime;
+			this.hash = hash;
+		}
+
+		List<String> identity() {
+			return Arrays.asList(packageName, sourceFileName, className);
+		}
+
+	}
+
+}
@@ -0,0 +1,142 @@
+package br.com.george.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A parsed method descriptor like <code>(I[JLjava/lang/String;)V</code>.
+ * Descriptors repeat across a code base, so instances are interned and also
+ * cache the <code>"name desc"</code> keys of the methods using them.
+ */
+final class MethodDescriptor {
+
+	private static final ConcurrentMap<String, MethodDescriptor> CACHE = new ConcurrentHashMap<String, MethodDescriptor>();
+
+	final String desc;
+	final int paramCount;
+	final int slotCount;
+	final char returnType;
+
+	private final ConcurrentMap<String, String> keys = new ConcurrentHashMap<String, String>(4);
+
+	private MethodDescriptor(final String desc) {
+		final long scan = scan(desc);
+		this.desc = desc;
+		this.paramCount = paramCount(scan);
+		this.slotCount = slotCount(scan);
+		this.returnType = returnType(scan);
+	}
+
+	/**
+	 * Returns the shared instance for the given descriptor.
+	 */
+	static MethodDescriptor intern(final String desc) {
+		MethodDescriptor descriptor = CACHE.get(desc);
+		if (descriptor == null) {
+			descriptor = new MethodDescriptor(desc);
+			final MethodDescriptor existing = CACHE.putIfAbsent(desc, descriptor);
+			if (existing != null) {
+				descriptor = existing;
+			}
+		}
+		return descriptor;
+	}
+
+	/**
+	 * Returns the shared <code>"name desc"</code> key of a method with this
+	 * descriptor, as stored in method_metrics.
+	 */
+	String key(final String name) {
+		String key = keys.get(name);
+		if (key == null) {
+			key = name + " " + desc;
+			final String existing = keys.putIfAbsent(name, key);
+			if (existing != null) {
+				key = existing;
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Scans a method descriptor in a single pass without allocating.
+	 *
+	 * @return parameter count, slot count and return type packed into a long,
+	 *         read them with {@link #paramCount(long)},
+	 *         {@link #slotCount(long)} and {@link #returnType(long)}
+	 * @throws IllegalArgumentException
+	 *             if the descriptor is malformed
+	 */
+	static long scan(final String desc) {
+		final int length = desc.length();
+		if (length == 0 || desc.charAt(0) != '(') {
+			throw new IllegalArgumentException("Method signature does not contain parameters: " + desc);
+		}
+		int params = 0;
+		int slots = 0;
+		int i = 1;
+		while (true) {
+			if (i >= length) {
+				throw new IllegalArgumentException("Unterminated method signature: " + desc);
+			}
+			char c = desc.charAt(i);
+			if (c == ')') {
+				break;
+			}
+			final int start = i;
+			while (c == '[') {
+				if (++i >= length) {
+					throw new IllegalArgumentException("Invalid array type in method signature: " + desc);
+				}
+				c = desc.charAt(i);
+			}
+			switch (c) {
+			case 'L':
+				i = desc.indexOf(';', i);
+				if (i < 0) {
+					throw new IllegalArgumentException("Unterminated class type in method signature: " + desc);
+				}
+				slots++;
+				break;
+			case 'J':
+			case 'D':
+				// long and double take two slots, arrays of them one
+				slots += i == start ? 2 : 1;
+				break;
+			case 'B':
+			case 'C':
+			case 'S':
+			case 'I':
+			case 'F':
+			case 'Z':
+				slots++;
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid type '" + c + "' in method signature: " + desc);
+			}
+			params++;
+			i++;
+		}
+		if (i + 1 >= length) {
+			throw new IllegalArgumentException("Missing return type in method signature: " + desc);
+		}
+		return params | (long) slots << 16 | (long) desc.charAt(i + 1) << 32;
+	}
+
+	static int paramCount(final long scan) {
+		return (int) (scan & 0xffff);
+	}
+
+	static int slotCount(final long scan) {
+		return (int) (scan >>> 16 & 0xffff);
+	}
+
+	/**
+	 * @return first character of the return type: <code>V</code>, a
+	 *         primitive type, <code>L</code> or <code>[</code>
+	 */
+	static char returnType(final long scan) {
+		return (char) (scan >>> 32 & 0xffff);
+	}
+
+}
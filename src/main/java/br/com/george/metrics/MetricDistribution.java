@@ -0,0 +1,246 @@
+package br.com.george.metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Distribution of the values of one metric at one level: count, sum, min and
+ * max, a quantile sketch and a histogram with fixed bins.
+ * <p>
+ * The sketch keeps a count per logarithmic bucket of relative width
+ * {@link #ACCURACY} (the DDSketch scheme), so a quantile is reported within
+ * 1% of the true value. Merging adds the counts of equal buckets, which
+ * makes the result independent of how the values were split between
+ * workers, runs or packages.
+ */
+final class MetricDistribution {
+
+	static final double ACCURACY = 0.01;
+	private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+	private static final double LOG_GAMMA = Math.log(GAMMA);
+
+	/** lower bounds of the fixed bins, the last bin has no upper bound */
+	static final double[] BINS = { 0, 1, 2, 3, 4, 5, 6, 8, 10, 12, 15, 20, 25, 30, 40, 50, 60, 80, 100, 150, 200,
+			300, 400, 500, 750, 1000, 2000, 5000, 10000 };
+
+	private static final int VERSION = 1;
+
+	long count;
+	double sum;
+	double min = Double.POSITIVE_INFINITY;
+	double max = Double.NEGATIVE_INFINITY;
+	private long zero;
+	private final Buckets positive = new Buckets();
+	private final Buckets negative = new Buckets();
+	/** bin 0 holds negative values, bin i + 1 the values of BINS[i] */
+	private final long[] bins = new long[BINS.length + 1];
+
+	void add(final double value) {
+		count++;
+		sum += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+		if (value > 0) {
+			positive.add(index(value), 1);
+		} else if (value < 0) {
+			negative.add(index(-value), 1);
+		} else {
+			zero++;
+		}
+		bins[bin(value)]++;
+	}
+
+	void merge(final MetricDistribution other) {
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		zero += other.zero;
+		positive.merge(other.positive);
+		negative.merge(other.negative);
+		for (int i = 0; i < bins.length; i++) {
+			bins[i] += other.bins[i];
+		}
+	}
+
+	/**
+	 * @param q
+	 *            quantile between 0 and 1
+	 * @return estimated value of the quantile, within the min and max
+	 */
+	double quantile(final double q) {
+		if (count == 0) {
+			return Double.NaN;
+		}
+		final long rank = (long) (q * (count - 1));
+		long seen = 0;
+		for (int i = negative.counts.length - 1; i >= 0; i--) {
+			seen += negative.counts[i];
+			if (seen > rank) {
+				return clamp(-value(negative.offset + i));
+			}
+		}
+		seen += zero;
+		if (seen > rank) {
+			return 0;
+		}
+		for (int i = 0; i < positive.counts.length; i++) {
+			seen += positive.counts[i];
+			if (seen > rank) {
+				return clamp(value(positive.offset + i));
+			}
+		}
+		return max;
+	}
+
+	double mean() {
+		return count == 0 ? Double.NaN : sum / count;
+	}
+
+	/**
+	 * @return number of values in the given bin, see {@link #lower(int)}
+	 */
+	long bin(final int i) {
+		return bins[i];
+	}
+
+	int binCount() {
+		return bins.length;
+	}
+
+	/**
+	 * @return lower bound of a bin, <code>null</code> for the bin of the
+	 *         negative values
+	 */
+	static Double lower(final int bin) {
+		return bin == 0 ? null : Double.valueOf(BINS[bin - 1]);
+	}
+
+	/**
+	 * @return exclusive upper bound of a bin, <code>null</code> for the last
+	 *         one
+	 */
+	static Double upper(final int bin) {
+		return bin == BINS.length ? null : Double.valueOf(BINS[bin]);
+	}
+
+	byte[] toBytes() {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(VERSION);
+			out.writeLong(count);
+			out.writeDouble(sum);
+			out.writeDouble(min);
+			out.writeDouble(max);
+			out.writeLong(zero);
+			positive.write(out);
+			negative.write(out);
+			out.writeShort(bins.length);
+			for (long bin : bins) {
+				out.writeLong(bin);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	static MetricDistribution fromBytes(final byte[] bytes) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (in.readByte() != VERSION) {
+			throw new IOException("Unknown sketch version");
+		}
+		final MetricDistribution d = new MetricDistribution();
+		d.count = in.readLong();
+		d.sum = in.readDouble();
+		d.min = in.readDouble();
+		d.max = in.readDouble();
+		d.zero = in.readLong();
+		d.positive.read(in);
+		d.negative.read(in);
+		if (in.readShort() != d.bins.length) {
+			throw new IOException("Sketch bins do not match");
+		}
+		for (int i = 0; i < d.bins.length; i++) {
+			d.bins[i] = in.readLong();
+		}
+		return d;
+	}
+
+	private double clamp(final double v) {
+		return Math.max(min, Math.min(max, v));
+	}
+
+	private static int index(final double v) {
+		return (int) Math.ceil(Math.log(v) / LOG_GAMMA);
+	}
+
+	private static double value(final int index) {
+		return 2 * Math.pow(GAMMA, index) / (1 + GAMMA);
+	}
+
+	private static int bin(final double value) {
+		if (value < 0) {
+			return 0;
+		}
+		int i = Arrays.binarySearch(BINS, value);
+		if (i < 0) {
+			i = -i - 2;
+		}
+		return i + 1;
+	}
+
+	/**
+	 * Dense bucket counts starting at bucket index <code>offset</code>.
+	 */
+	private static final class Buckets {
+
+		int offset;
+		long[] counts = new long[0];
+
+		void add(final int index, final long n) {
+			if (counts.length == 0) {
+				offset = index;
+				counts = new long[1];
+			} else if (index < offset) {
+				final long[] grown = new long[counts.length + offset - index];
+				System.arraycopy(counts, 0, grown, offset - index, counts.length);
+				counts = grown;
+				offset = index;
+			} else if (index >= offset + counts.length) {
+				counts = Arrays.copyOf(counts, index - offset + 1);
+			}
+			counts[index - offset] += n;
+		}
+
+		void merge(final Buckets other) {
+			for (int i = 0; i < other.counts.length; i++) {
+				if (other.counts[i] != 0) {
+					add(other.offset + i, other.counts[i]);
+				}
+			}
+		}
+
+		void write(final DataOutputStream out) throws IOException {
+			out.writeInt(offset);
+			out.writeInt(counts.length);
+			for (long c : counts) {
+				out.writeLong(c);
+			}
+		}
+
+		void read(final DataInputStream in) throws IOException {
+			offset = in.readInt();
+			counts = new long[in.readInt()];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = in.readLong();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,336 @@
+package br.com.george.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * Metric deltas between two databases of {@link Start}, for the
+ * <code>diff</code> command.
+ * <p>
+ * Each level table is read from both databases in primary key order, which
+ * is a scan of their key index, and the two streams are merge-joined row by
+ * row: a row whose entity only exists in the new database is added, only in
+ * the old one removed, and a metric whose value differs is changed. Memory
+ * does not depend on the size of the tables; the changes are staged in a
+ * temporary table and ranked by SQLite, which sorts them on disk if needed.
+ * <p>
+ * The rank is by regression: the increase of the value, or its decrease for
+ * the <code>Covered*</code> metrics where more is better.
+ */
+final class MetricsDiff {
+
+	static final String ADDED = "added";
+	static final String REMOVED = "removed";
+	static final String CHANGED = "changed";
+
+	private static final byte[] SQLITE_HEADER = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+
+	/** key columns of every level, in the order of the levels */
+	private static final String[] KEYS = { "package", "file", "class", "method" };
+	private static final String[] LEVELS = { Distributions.PACKAGE, Distributions.FILE, Distributions.CLASS,
+			Distributions.METHOD };
+	private static final String[] TABLES = { "package_metrics", "file_metrics", "class_metrics",
+			"method_metrics" };
+
+	private static String stagingSql = "create temp table deltas( level varchar, package varchar, file varchar, class varchar, method varchar, metric varchar, status varchar, old_value double, new_value double, delta double, regression double)";
+	private static String stageSql = "INSERT INTO temp.deltas (level,package,file,class,method,metric,status,old_value,new_value,delta,regression) VALUES (?,?,?,?,?,?,?,?,?,?,?) ";
+	private static String tableSql = "create table metric_deltas( rank integer primary key, level varchar, package varchar, file varchar, class varchar, method varchar, metric varchar, status varchar, old_value double, new_value double, delta double, regression double)";
+	private static String rankedSql = "SELECT level,package,file,class,method,metric,status,old_value,new_value,delta,regression FROM temp.deltas ORDER BY regression DESC, level, package, file, class, method, metric";
+
+	private final Connection older;
+	private final Connection newer;
+	private final Connection work;
+	private final int batchSize;
+	private final RunStats stats;
+
+	long added;
+	long removed;
+	long changed;
+	long unchanged;
+
+	/**
+	 * @param older
+	 *            database of the base build
+	 * @param newer
+	 *            database of the build compared with it
+	 * @param work
+	 *            connection holding the temporary table of the changes, the
+	 *            output for {@link #writeTable()}
+	 */
+	MetricsDiff(final Connection older, final Connection newer, final Connection work, final int batchSize,
+			final RunStats stats) {
+		this.older = older;
+		this.newer = newer;
+		this.work = work;
+		this.batchSize = batchSize;
+		this.stats = stats;
+	}
+
+	/**
+	 * Tells whether the given file is a SQLite database, by its header.
+	 */
+	static boolean isDatabase(final File file) throws IOException {
+		if (!file.isFile()) {
+			return false;
+		}
+		final byte[] header = new byte[SQLITE_HEADER.length];
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int read = 0;
+			for (int n; read < header.length && (n = in.read(header, read, header.length - read)) > 0;) {
+				read += n;
+			}
+			return read == header.length && Arrays.equals(header, SQLITE_HEADER);
+		}
+	}
+
+	/**
+	 * Joins every level of the two databases and stages the changes.
+	 */
+	void compare() throws SQLException {
+		try (Statement st = work.createStatement()) {
+			st.execute(stagingSql);
+		}
+		final SqliteWriter writer = new SqliteWriter(work, batchSize, 0, stats);
+		try {
+			final SqliteWriter.Batch stage = writer.batch(stageSql);
+			for (int level = 0; level < LEVELS.length; level++) {
+				compare(writer, stage, level);
+			}
+			writer.close();
+		} catch (SQLException | RuntimeException e) {
+			writer.rollback();
+			throw e;
+		}
+	}
+
+	private void compare(final SqliteWriter writer, final SqliteWriter.Batch stage, final int level)
+			throws SQLException {
+		final int keys = level + 1;
+		final StringBuilder columns = new StringBuilder();
+		for (int i = 0; i < keys; i++) {
+			columns.append(KEYS[i]).append(", ");
+		}
+		final String sql = "SELECT " + columns + "metric, value FROM " + TABLES[level] + " ORDER BY " + columns
+				+ "metric";
+		try (Cursor o = new Cursor(older, sql, keys); Cursor n = new Cursor(newer, sql, keys)) {
+			// last entity of both sides: its metrics left on one side are changed, not added or removed
+			String[] matched = null;
+			o.next();
+			n.next();
+			while (!o.done || !n.done) {
+				final int c = o.done ? 1 : n.done ? -1 : compare(o.key, n.key);
+				if (c < 0) {
+					if (Arrays.equals(o.key, matched)) {
+						// a metric the new build no longer has, such as coverage
+						stage(writer, stage, level, o.key, o.metric, CHANGED, o.value, null);
+						changed++;
+					} else {
+						stage(writer, stage, level, o.key, o.metric, REMOVED, o.value, null);
+						removed++;
+					}
+					o.next();
+				} else if (c > 0) {
+					if (Arrays.equals(n.key, matched)) {
+						stage(writer, stage, level, n.key, n.metric, CHANGED, null, n.value);
+						changed++;
+					} else {
+						stage(writer, stage, level, n.key, n.metric, ADDED, null, n.value);
+						added++;
+					}
+					n.next();
+				} else {
+					if (!Arrays.equals(o.key, matched)) {
+						matched = o.key.clone();
+					}
+					final int m = compare(o.metric, n.metric);
+					if (m < 0) {
+						stage(writer, stage, level, o.key, o.metric, CHANGED, o.value, null);
+						changed++;
+						o.next();
+					} else if (m > 0) {
+						stage(writer, stage, level, n.key, n.metric, CHANGED, null, n.value);
+						changed++;
+						n.next();
+					} else {
+						if (o.value.doubleValue() != n.value.doubleValue()) {
+							stage(writer, stage, level, o.key, o.metric, CHANGED, o.value, n.value);
+							changed++;
+						} else {
+							unchanged++;
+						}
+						o.next();
+						n.next();
+					}
+				}
+			}
+		}
+	}
+
+	private static void stage(final SqliteWriter writer, final SqliteWriter.Batch stage, final int level,
+			final String[] key, final String metric, final String status, final Double oldValue,
+			final Double newValue) throws SQLException {
+		final double delta = (newValue != null ? newValue.doubleValue() : 0)
+				- (oldValue != null ? oldValue.doubleValue() : 0);
+		final PreparedStatement pstmt = stage.stmt();
+		pstmt.setString(1, LEVELS[level]);
+		for (int i = 0; i < KEYS.length; i++) {
+			pstmt.setString(2 + i, i < key.length ? key[i] : null);
+		}
+		pstmt.setString(6, metric);
+		pstmt.setString(7, status);
+		pstmt.setObject(8, oldValue);
+		pstmt.setObject(9, newValue);
+		pstmt.setDouble(10, delta);
+		pstmt.setDouble(11, metric.startsWith("Covered") ? -delta : delta);
+		writer.add(stage);
+	}
+
+	/**
+	 * Writes the ranked changes to the metric_deltas table of the work
+	 * database, the rank being its key.
+	 */
+	void writeTable() throws SQLException {
+		try (Statement st = work.createStatement()) {
+			st.execute(tableSql);
+			st.executeUpdate("INSERT INTO main.metric_deltas (level,package,file,class,method,metric,status,"
+					+ "old_value,new_value,delta,regression) " + rankedSql);
+			st.execute("DROP TABLE temp.deltas");
+		}
+	}
+
+	/**
+	 * Writes the ranked changes as JSON, one object per line.
+	 */
+	void writeJson(final File file) throws SQLException, IOException {
+		try (Statement st = work.createStatement();
+				ResultSet rs = st.executeQuery(rankedSql);
+				Writer w = new BufferedWriter(
+						new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+			final StringBuilder sb = new StringBuilder();
+			long rank = 0;
+			while (rs.next()) {
+				sb.setLength(0);
+				sb.append("{\"rank\":").append(++rank).append(",\"level\":");
+				final String level = rs.getString(1);
+				TextSink.jsonString(sb, level);
+				final int keys = Arrays.asList(LEVELS).indexOf(level) + 1;
+				for (int i = 0; i < keys; i++) {
+					sb.append(",\"").append(KEYS[i]).append("\":");
+					TextSink.jsonString(sb, rs.getString(2 + i));
+				}
+				sb.append(",\"metric\":");
+				TextSink.jsonString(sb, rs.getString(6));
+				sb.append(",\"status\":");
+				TextSink.jsonString(sb, rs.getString(7));
+				sb.append(",\"old\":");
+				number(sb, rs, 8);
+				sb.append(",\"new\":");
+				number(sb, rs, 9);
+				sb.append(",\"delta\":");
+				number(sb, rs, 10);
+				sb.append("}\n");
+				w.write(sb.toString());
+			}
+		}
+	}
+
+	private static void number(final StringBuilder sb, final ResultSet rs, final int column) throws SQLException {
+		final double value = rs.getDouble(column);
+		if (rs.wasNull()) {
+			sb.append("null");
+		} else {
+			TextSink.value(sb, value);
+		}
+	}
+
+	private static int compare(final String[] a, final String[] b) {
+		for (int i = 0; i < a.length; i++) {
+			final int c = compare(a[i], b[i]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Compares as the BINARY collation of SQLite on the strings written by
+	 * the driver: <code>null</code> first, then the bytes. The driver writes
+	 * modified UTF-8, each surrogate on its own and <code>\0</code> on two
+	 * bytes, so the order is the UTF-16 order but for <code>\0</code>, which
+	 * comes between U+007F and U+0080.
+	 */
+	static int compare(final String a, final String b) {
+		if (a == null || b == null) {
+			return a == b ? 0 : a == null ? -1 : 1;
+		}
+		final int n = Math.min(a.length(), b.length());
+		for (int i = 0; i < n; i++) {
+			final char x = a.charAt(i);
+			final char y = b.charAt(i);
+			if (x != y) {
+				return weight(x) - weight(y);
+			}
+		}
+		return a.length() - b.length();
+	}
+
+	private static int weight(final char c) {
+		return c == 0 ? 0x80 : c < 0x80 ? c : c + 1;
+	}
+
+	/**
+	 * The rows of one level table of one database, in key order. The
+	 * current row is held in the fields, replaced by {@link #next()}.
+	 */
+	private static final class Cursor implements AutoCloseable {
+
+		private final Statement st;
+		private final ResultSet rs;
+		final String[] key;
+		String metric;
+		Double value;
+		boolean done;
+
+		Cursor(final Connection conn, final String sql, final int keys) throws SQLException {
+			this.st = conn.createStatement();
+			this.rs = st.executeQuery(sql);
+			this.key = new String[keys];
+		}
+
+		void next() throws SQLException {
+			if (!rs.next()) {
+				done = true;
+				return;
+			}
+			for (int i = 0; i < key.length; i++) {
+				key[i] = rs.getString(i + 1);
+			}
+			metric = rs.getString(key.length + 1);
+			value = Double.valueOf(rs.getDouble(key.length + 2));
+		}
+
+		public void close() throws SQLException {
+			try {
+				rs.close();
+			} finally {
+				st.close();
+			}
+		}
+
+	}
+
+}
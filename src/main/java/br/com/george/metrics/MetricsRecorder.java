@@ -0,0 +1,174 @@
+package br.com.george.metrics;
+
+/**
+ * Turns the {@link ClassMetrics} of each class into class and method rows
+ * and package/file rollups.
+ */
+final class MetricsRecorder {
+
+	static final String CountParams = "CountParams";
+	static final String MaxCyclomatic= "MaxCyclomatic";
+	static final String CyclomaticModified = "CyclomaticModified";
+	static final String MaxCyclomaticModified = "MaxCyclomaticModified";
+	static final String Cyclomatic = "Cyclomatic";
+	static final String CountLineCode = "CountLineCode";
+	static final String CountDeclMethod = "CountDeclMethod";
+	static final String CountDeclClass= "CountDeclClass";
+	static final String CountDeclFunction= "CountDeclFunction";
+	/** coverage metrics, in the order of {@link ClassMetrics#coverage} */
+	static final String[] COVERAGE = { "CoveredInstructions", "MissedInstructions", "CoveredBranches",
+			"MissedBranches", "CoveredLines", "MissedLines", "CoveredComplexity", "MissedComplexity" };
+	/**
+	 * class metrics of the ASM engine, in the order of
+	 * {@link ClassMetrics#bytecode}: distinct classes referenced (fan-out)
+	 * and instructions left by the filters
+	 */
+	static final String[] BYTECODE = { "CountClassCoupled", "CountInstructions" };
+
+	private final MetricsSink writer;
+	private final RunStats stats;
+	private final Rollup rollup = new Rollup();
+	private final SourceLines sources;
+
+	MetricsRecorder(final MetricsSink writer) {
+		this(writer, new RunStats());
+	}
+
+	MetricsRecorder(final MetricsSink writer, final RunStats stats) {
+		this(writer, stats, null);
+	}
+
+	/**
+	 * @param stats
+	 *            receives the rows written and the aggregation time, the
+	 *            time spent by the sink itself is reported by the sink
+	 * @param sources
+	 *            counts the source lines of the recorded classes when they
+	 *            are finished, may be <code>null</code>
+	 */
+	MetricsRecorder(final MetricsSink writer, final RunStats stats, final SourceLines sources) {
+		this.writer = writer;
+		this.stats = stats;
+		this.sources = sources;
+	}
+
+	/**
+	 * Writes the rows of a class and adds it to the rollups.
+	 */
+	void record(final ClassMetrics cm) throws Exception {
+		final long wall = System.nanoTime();
+		final long cpu = RunStats.cpuTime();
+		final long writeWall = stats.wall(RunStats.Phase.WRITE);
+		final long writeCpu = stats.cpu(RunStats.Phase.WRITE);
+		final String pkg = cm.packageName;
+		final String file = cm.sourceFileName;
+		final double complexity = cm.complexity;
+		final double lines = cm.lines;
+
+		rollup(pkg, file, complexity, lines, cm.methods.size());
+		if (sources != null) {
+			sources.add(pkg, file, cm.name);
+		}
+
+		writer.insertClass(pkg, file, cm.name, CyclomaticModified, complexity);
+		writer.insertClass(pkg, file, cm.name, Cyclomatic, complexity);
+		writer.insertClass(pkg, file, cm.name, CountLineCode, lines);
+		writer.insertClass(pkg, file, cm.name, CountDeclMethod, cm.methodCount);
+		writer.insertLocation(pkg, file, cm.name, cm.location);
+		int rows = 5 + 4 * cm.methods.size();
+		if (cm.coverage != null) {
+			for (int i = 0; i < COVERAGE.length; i++) {
+				writer.insertClass(pkg, file, cm.name, COVERAGE[i], cm.coverage[i]);
+				rollup.addPackage(pkg, COVERAGE[i], cm.coverage[i]);
+				rollup.addFile(pkg, file, COVERAGE[i], cm.coverage[i]);
+			}
+			rows += COVERAGE.length;
+		}
+		if (cm.bytecode != null) {
+			for (int i = 0; i < BYTECODE.length; i++) {
+				writer.insertClass(pkg, file, cm.name, BYTECODE[i], cm.bytecode[i]);
+			}
+			rows += BYTECODE.length;
+		}
+
+		for (ClassMetrics.Method mc : cm.methods) {
+			writer.insertMethod(pkg, file, cm.name, mc.key, CyclomaticModified, mc.complexity);
+			writer.insertMethod(pkg, file, cm.name, mc.key, Cyclomatic, mc.complexity);
+			writer.insertMethod(pkg, file, cm.name, mc.key, CountLineCode, mc.lines);
+			writer.insertMethod(pkg, file, cm.name, mc.key, CountParams, mc.descriptor.paramCount);
+			if (mc.coverage != null) {
+				for (int i = 0; i < COVERAGE.length; i++) {
+					writer.insertMethod(pkg, file, cm.name, mc.key, COVERAGE[i], mc.coverage[i]);
+				}
+				rows += COVERAGE.length;
+			}
+		}
+		stats.rowsWritten.add(rows);
+		aggregated(wall, cpu, writeWall, writeCpu);
+	}
+
+	/**
+	 * Reports the time since the given start as aggregation, without the
+	 * write time reported meanwhile by the sink (on this same thread).
+	 */
+	private void aggregated(final long wall, final long cpu, final long writeWall, final long writeCpu) {
+		stats.add(RunStats.Phase.AGGREGATE,
+				System.nanoTime() - wall - (stats.wall(RunStats.Phase.WRITE) - writeWall),
+				RunStats.cpuTime() - cpu - (stats.cpu(RunStats.Phase.WRITE) - writeCpu));
+	}
+
+	/**
+	 * Writes another location of a class already recorded.
+	 */
+	void location(final String pkg, final String file, final String cls, final String location) throws Exception {
+		writer.insertLocation(pkg, file, cls, location);
+		stats.rowsWritten.increment();
+	}
+
+	/**
+	 * Adds a class to the package and file rollups only.
+	 */
+	void rollup(final String pkg, final String file, final double complexity, final double lines,
+			final int methods) {
+		rollup.addPackage(pkg, CyclomaticModified, complexity);
+		rollup.addPackage(pkg, Cyclomatic, complexity);
+		rollup.addPackage(pkg, CountLineCode, lines);
+		rollup.maxPackage(pkg, MaxCyclomatic, complexity);
+		rollup.maxPackage(pkg, MaxCyclomaticModified, complexity);
+
+		rollup.addFile(pkg, file, CyclomaticModified, complexity);
+		rollup.addFile(pkg, file, Cyclomatic, complexity);
+		rollup.addFile(pkg, file, CountLineCode, lines);
+		rollup.addFile(pkg, file, CountDeclClass, 1.0);
+		rollup.addFile(pkg, file, CountDeclMethod, 0);
+		rollup.addFile(pkg, file, CountDeclFunction, methods);
+		rollup.maxFile(pkg, file, MaxCyclomatic, complexity);
+		rollup.maxFile(pkg, file, MaxCyclomaticModified, complexity);
+	}
+
+	/**
+	 * Writes the source line counts and the accumulated package and file
+	 * rollups.
+	 */
+	void finish() throws Exception {
+		finish(null);
+	}
+
+	/**
+	 * Writes the source line counts and the accumulated package and file
+	 * rollups, as the mergeable cells of a partial result when
+	 * <code>cells</code> is given.
+	 */
+	void finish(final SqliteWriter cells) throws Exception {
+		if (sources != null) {
+			stats.rowsWritten.add(sources.write(writer, rollup));
+		}
+		final long wall = System.nanoTime();
+		final long cpu = RunStats.cpuTime();
+		final long writeWall = stats.wall(RunStats.Phase.WRITE);
+		final long writeCpu = stats.cpu(RunStats.Phase.WRITE);
+		stats.rowsWritten.add(cells != null ? rollup.writeCells(cells) : rollup.write(writer));
+		aggregated(wall, cpu, writeWall, writeCpu);
+	}
+
+}
@@ -0,0 +1,337 @@
+package br.com.george.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Report built while the rows are written, so that a CI gate needs no
+ * second pass over the output: the N largest values of every metric at
+ * every level and the threshold rules of <code>--fail-on</code>.
+ * <p>
+ * Each metric keeps a min-heap of at most N entries, so memory does not
+ * grow with the number of methods; a row is dropped after one comparison
+ * with the smallest kept value unless it is larger.
+ */
+final class MetricsReport {
+
+	/** key columns of each level */
+	private static final Map<String, String[]> COLUMNS = new TreeMap<String, String[]>();
+
+	static {
+		COLUMNS.put(Distributions.PACKAGE, new String[] { "package" });
+		COLUMNS.put(Distributions.FILE, new String[] { "package", "file" });
+		COLUMNS.put(Distributions.CLASS, new String[] { "package", "file", "class" });
+		COLUMNS.put(Distributions.METHOD, new String[] { "package", "file", "class", "method" });
+	}
+
+	/** smallest value first; of equal values the greatest key, so ties keep the first keys */
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		public int compare(final Entry a, final Entry b) {
+			final int c = Double.compare(a.value, b.value);
+			return c != 0 ? c : compareKeys(b.key, a.key);
+		}
+	};
+
+	private final int size;
+	private final List<Rule> rules;
+	/** level, metric: sorted so that the summary is stable */
+	private final Map<String, Map<String, Top>> levels = new TreeMap<String, Map<String, Top>>();
+
+	/**
+	 * @param size
+	 *            entries kept per level and metric
+	 * @param rules
+	 *            threshold rules checked on every row
+	 */
+	MetricsReport(final int size, final List<Rule> rules) {
+		this.size = size;
+		this.rules = rules;
+	}
+
+	/**
+	 * Returns a sink that adds every row to this report before passing it to
+	 * the given sink.
+	 */
+	MetricsSink observe(final MetricsSink sink) {
+		return new MetricsSink() {
+
+			public void insertPackage(final String pkg, final String metric, final double value) throws Exception {
+				add(Distributions.PACKAGE, metric, value, pkg);
+				sink.insertPackage(pkg, metric, value);
+			}
+
+			public void insertFile(final String pkg, final String file, final String metric, final double value)
+					throws Exception {
+				add(Distributions.FILE, metric, value, pkg, file);
+				sink.insertFile(pkg, file, metric, value);
+			}
+
+			public void insertClass(final String pkg, final String file, final String cls, final String metric,
+					final double value) throws Exception {
+				add(Distributions.CLASS, metric, value, pkg, file, cls);
+				sink.insertClass(pkg, file, cls, metric, value);
+			}
+
+			public void insertMethod(final String pkg, final String file, final String cls, final String method,
+					final String metric, final double value) throws Exception {
+				add(Distributions.METHOD, metric, value, pkg, file, cls, method);
+				sink.insertMethod(pkg, file, cls, method, metric, value);
+			}
+
+			public void insertLocation(final String pkg, final String file, final String cls, final String location)
+					throws Exception {
+				sink.insertLocation(pkg, file, cls, location);
+			}
+
+			public void close() {
+			}
+
+		};
+	}
+
+	void add(final String level, final String metric, final double value, final String... key) {
+		Map<String, Top> metrics = levels.get(level);
+		if (metrics == null) {
+			metrics = new TreeMap<String, Top>();
+			levels.put(level, metrics);
+		}
+		Top top = metrics.get(metric);
+		if (top == null) {
+			top = new Top(size);
+			metrics.put(metric, top);
+		}
+		top.add(value, key);
+		for (Rule rule : rules) {
+			if (rule.metric.equals(metric) && rule.level.equals(level) && rule.violated(value)) {
+				rule.violations++;
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> when no row violated a rule
+	 */
+	boolean passed() {
+		for (Rule rule : rules) {
+			if (rule.violations > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Prints the outcome of every rule.
+	 */
+	void print(final PrintStream out) {
+		for (Rule rule : rules) {
+			out.println("Rule " + rule + ": " + (rule.violations == 0 ? "passed" : rule.violations + " violations"));
+		}
+	}
+
+	/**
+	 * Writes the rules and the largest values as JSON, one entry per line.
+	 */
+	void writeJson(final File file) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"passed\": ").append(passed());
+		sb.append(",\n  \"rules\": [");
+		for (int i = 0; i < rules.size(); i++) {
+			final Rule rule = rules.get(i);
+			sb.append(i == 0 ? "\n    " : ",\n    ");
+			sb.append("{\"rule\": ");
+			TextSink.jsonString(sb, rule.toString());
+			sb.append(", \"violations\": ").append(rule.violations).append('}');
+		}
+		sb.append(rules.isEmpty() ? "]" : "\n  ]");
+		sb.append(",\n  \"top\": {");
+		boolean firstLevel = true;
+		for (Map.Entry<String, Map<String, Top>> level : levels.entrySet()) {
+			final String[] columns = COLUMNS.get(level.getKey());
+			sb.append(firstLevel ? "\n    \"" : ",\n    \"").append(level.getKey()).append("\": {");
+			firstLevel = false;
+			boolean firstMetric = true;
+			for (Map.Entry<String, Top> metric : level.getValue().entrySet()) {
+				sb.append(firstMetric ? "\n      \"" : ",\n      \"").append(metric.getKey()).append("\": [");
+				firstMetric = false;
+				final List<Entry> entries = metric.getValue().sorted();
+				for (int i = 0; i < entries.size(); i++) {
+					final Entry entry = entries.get(i);
+					sb.append(i == 0 ? "\n        {" : ",\n        {");
+					for (int c = 0; c < columns.length; c++) {
+						sb.append('"').append(columns[c]).append("\": ");
+						TextSink.jsonString(sb, entry.key[c]);
+						sb.append(", ");
+					}
+					sb.append("\"value\": ");
+					TextSink.value(sb, entry.value);
+					sb.append('}');
+				}
+				sb.append(entries.isEmpty() ? "]" : "\n      ]");
+			}
+			sb.append("\n    }");
+		}
+		sb.append(levels.isEmpty() ? "}\n}\n" : "\n  }\n}\n");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			w.write(sb.toString());
+		}
+	}
+
+	private static int compareKeys(final String[] a, final String[] b) {
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == null || b[i] == null) {
+				if (a[i] != b[i]) {
+					return a[i] == null ? -1 : 1;
+				}
+				continue;
+			}
+			final int c = a[i].compareTo(b[i]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * A threshold on one metric at one level, such as
+	 * <code>method.Cyclomatic&gt;15</code>.
+	 */
+	static final class Rule {
+
+		private static final String[] OPERATORS = { ">=", "<=", ">", "<" };
+
+		final String level;
+		final String metric;
+		final String operator;
+		final double limit;
+		long violations;
+
+		private Rule(final String level, final String metric, final String operator, final double limit) {
+			this.level = level;
+			this.metric = metric;
+			this.operator = operator;
+			this.limit = limit;
+		}
+
+		/**
+		 * Parses a rule of the form <code>level.metric&gt;limit</code>, the
+		 * operator being one of <code>&gt; &gt;= &lt; &lt;=</code>.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the rule is malformed
+		 */
+		static Rule parse(final String spec) {
+			for (String operator : OPERATORS) {
+				final int i = spec.indexOf(operator);
+				final int dot = spec.indexOf('.');
+				if (i < 0 || dot < 0 || dot > i) {
+					continue;
+				}
+				final String level = spec.substring(0, dot);
+				final String metric = spec.substring(dot + 1, i);
+				if (!COLUMNS.containsKey(level) || metric.isEmpty()) {
+					break;
+				}
+				try {
+					return new Rule(level, metric, operator,
+							Double.parseDouble(spec.substring(i + operator.length())));
+				} catch (NumberFormatException e) {
+					break;
+				}
+			}
+			throw new IllegalArgumentException("Invalid rule " + spec + ", expected level.metric>limit with level "
+					+ COLUMNS.keySet() + " and one of " + String.join(" ", OPERATORS));
+		}
+
+		boolean violated(final double value) {
+			switch (operator) {
+			case ">":
+				return value > limit;
+			case ">=":
+				return value >= limit;
+			case "<":
+				return value < limit;
+			default:
+				return value <= limit;
+			}
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder(level).append('.').append(metric).append(operator);
+			TextSink.value(sb, limit);
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * The largest values of one metric at one level.
+	 */
+	private static final class Top {
+
+		private final int size;
+		private final PriorityQueue<Entry> heap;
+
+		Top(final int size) {
+			this.size = size;
+			this.heap = new PriorityQueue<Entry>(size + 1, ORDER);
+		}
+
+		/**
+		 * @param key
+		 *            kept as is, the caller passes a new array for every row
+		 */
+		void add(final double value, final String[] key) {
+			if (heap.size() < size) {
+				heap.add(new Entry(value, key));
+				return;
+			}
+			if (size == 0) {
+				return;
+			}
+			final Entry min = heap.peek();
+			if (value < min.value || (value == min.value && compareKeys(key, min.key) >= 0)) {
+				return;
+			}
+			heap.poll();
+			heap.add(new Entry(value, key));
+		}
+
+		/**
+		 * @return the entries, largest value first
+		 */
+		List<Entry> sorted() {
+			final List<Entry> entries = new ArrayList<Entry>(heap);
+			Collections.sort(entries, Collections.reverseOrder(ORDER));
+			return entries;
+		}
+
+	}
+
+	private static final class Entry {
+
+		final double value;
+		final String[] key;
+
+		Entry(final double value, final String[] key) {
+			this.value = value;
+			this.key = key;
+		}
+
+	}
+
+}
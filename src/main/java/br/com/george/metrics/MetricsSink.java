@@ -0,0 +1,31 @@
+package br.com.george.metrics;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Destination of the metric rows produced by {@link MetricsRecorder}. The
+ * SQLite output ({@link SqliteWriter}) is one implementation, the file
+ * exports of <code>--format</code> ({@link TextSink}, {@link ColumnarSink})
+ * are the others. Sinks are called from a single thread.
+ */
+interface MetricsSink extends AutoCloseable {
+
+	void insertPackage(String pkg, String metric, double value) throws Exception;
+
+	void insertFile(String pkg, String file, String metric, double value) throws Exception;
+
+	void insertClass(String pkg, String file, String cls, String metric, double value) throws Exception;
+
+	void insertMethod(String pkg, String file, String cls, String method, String metric, double value)
+			throws Exception;
+
+	void insertLocation(String pkg, String file, String cls, String location) throws Exception;
+
+	/**
+	 * Writes the pending rows and releases the output.
+	 */
+	@Override
+	void close() throws IOException, SQLException;
+
+}
@@ -0,0 +1,156 @@
+package br.com.george.metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes metric rows to the normalized schema of script-normalized.sql.
+ * Package, file, class, method and metric names are stored once in
+ * dimension tables and the fact tables only hold integer ids and values; the
+ * ids are assigned here from in-memory dictionaries, so no lookup query is
+ * needed while loading. The views of the normalized script expose the flat
+ * tables unchanged and indexes-normalized.sql is run once the load is done.
+ */
+final class NormalizedWriter extends SqliteWriter {
+
+	private static String packageDimSql = "INSERT INTO packages (id,name) VALUES (?,?) ";
+	private static String fileDimSql = "INSERT INTO files (id,package_id,name) VALUES (?,?,?) ";
+	private static String classDimSql = "INSERT INTO classes (id,file_id,name) VALUES (?,?,?) ";
+	private static String methodDimSql = "INSERT INTO methods (id,class_id,name) VALUES (?,?,?) ";
+	private static String metricDimSql = "INSERT INTO metrics (id,name) VALUES (?,?) ";
+	private static String pkgFactSql = "INSERT INTO package_facts (package_id,metric_id,value) VALUES (?,?,?) ";
+	private static String fileFactSql = "INSERT INTO file_facts (file_id,metric_id,value) VALUES (?,?,?) ";
+	private static String classFactSql = "INSERT INTO class_facts (class_id,metric_id,value) VALUES (?,?,?) ";
+	private static String methodFactSql = "INSERT INTO method_facts (method_id,metric_id,value) VALUES (?,?,?) ";
+	private static String locationFactSql = "INSERT INTO class_location_facts (class_id,location) VALUES (?,?) ";
+
+	/** the dimensions are created first so that every flushed fact has its names */
+	private final Dictionary packages = new Dictionary(packageDimSql);
+	private final Dictionary files = new Dictionary(fileDimSql);
+	private final Dictionary classes = new Dictionary(classDimSql);
+	private final Dictionary methods = new Dictionary(methodDimSql);
+	private final Dictionary metrics = new Dictionary(metricDimSql);
+	private final Batch pkgFact = new Batch(pkgFactSql);
+	private final Batch fileFact = new Batch(fileFactSql);
+	private final Batch classFact = new Batch(classFactSql);
+	private final Batch methodFact = new Batch(methodFactSql);
+	private final Batch locationFact = new Batch(locationFactSql);
+
+	/**
+	 * @see SqliteWriter#SqliteWriter(Connection, int, int, RunStats)
+	 */
+	NormalizedWriter(final Connection conn, final int batchSize, final int commitEvery, final RunStats stats)
+			throws SQLException {
+		super(conn, batchSize, commitEvery, stats);
+	}
+
+	@Override
+	public void insertPackage(final String pkg, final String metric, final double value) throws SQLException {
+		fact(pkgFact, packageId(pkg), metric, value);
+	}
+
+	@Override
+	public void insertFile(final String pkg, final String file, final String metric, final double value)
+			throws SQLException {
+		fact(fileFact, fileId(pkg, file), metric, value);
+	}
+
+	@Override
+	public void insertClass(final String pkg, final String file, final String cls, final String metric, final double value)
+			throws SQLException {
+		fact(classFact, classId(pkg, file, cls), metric, value);
+	}
+
+	@Override
+	public void insertMethod(final String pkg, final String file, final String cls, final String method,
+			final String metric, final double value) throws SQLException {
+		final int classId = classId(pkg, file, cls);
+		final String key = classId + "\0" + method;
+		final int id = methods.get(key);
+		fact(methodFact, id != 0 ? id : methods.add(key, classId, method), metric, value);
+	}
+
+	@Override
+	public void insertLocation(final String pkg, final String file, final String cls, final String location)
+			throws SQLException {
+		final int classId = classId(pkg, file, cls);
+		final PreparedStatement pstmt = locationFact.stmt();
+		pstmt.setInt(1, classId);
+		pstmt.setString(2, location);
+		add(locationFact);
+	}
+
+	private void fact(final Batch batch, final int id, final String metric, final double value) throws SQLException {
+		// resolved before binding: a new dimension row may flush the batches
+		final int known = metrics.get(metric);
+		final int metricId = known != 0 ? known : metrics.add(metric, 0, metric);
+		final PreparedStatement pstmt = batch.stmt();
+		pstmt.setInt(1, id);
+		pstmt.setInt(2, metricId);
+		pstmt.setDouble(3, value);
+		add(batch);
+	}
+
+	private int packageId(final String pkg) throws SQLException {
+		final int id = packages.get(pkg);
+		return id != 0 ? id : packages.add(pkg, 0, pkg);
+	}
+
+	private int fileId(final String pkg, final String file) throws SQLException {
+		final int packageId = packageId(pkg);
+		final String key = packageId + "\0" + file;
+		final int id = files.get(key);
+		return id != 0 ? id : files.add(key, packageId, file);
+	}
+
+	private int classId(final String pkg, final String file, final String cls) throws SQLException {
+		final int fileId = fileId(pkg, file);
+		final String key = fileId + "\0" + cls;
+		final int id = classes.get(key);
+		return id != 0 ? id : classes.add(key, fileId, cls);
+	}
+
+	/**
+	 * Ids of one dimension table, keyed by the parent id and the name. Ids
+	 * start at 1, 0 means unknown.
+	 */
+	private final class Dictionary {
+
+		private final Map<String, Integer> ids = new HashMap<String, Integer>();
+		private final Batch insert;
+
+		Dictionary(final String sql) {
+			this.insert = new Batch(sql);
+		}
+
+		int get(final String key) {
+			final Integer id = ids.get(key);
+			return id == null ? 0 : id.intValue();
+		}
+
+		/**
+		 * Assigns the next id and queues the dimension row.
+		 *
+		 * @param parent
+		 *            id of the parent row, 0 for dimensions without parent
+		 */
+		int add(final String key, final int parent, final String name) throws SQLException {
+			final int id = ids.size() + 1;
+			ids.put(key, Integer.valueOf(id));
+			final PreparedStatement pstmt = insert.stmt();
+			int i = 1;
+			pstmt.setInt(i++, id);
+			if (parent != 0) {
+				pstmt.setInt(i++, parent);
+			}
+			pstmt.setString(i, name);
+			NormalizedWriter.this.add(insert);
+			return id;
+		}
+
+	}
+
+}
@@ -0,0 +1,320 @@
+package br.com.george.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line options of {@link Start}. Positional arguments are kept in
+ * order, every other argument is a flag or has the form
+ * <code>--name value</code>.
+ */
+final class Options {
+
+	static final String USAGE = "java -jar metrics.jar [options] <Path_to_parse> <db_output>\n"
+			+ "       java -jar metrics.jar [options] merge <db_output> <partial>...\n"
+			+ "       java -jar metrics.jar [options] diff <old> <new> <output>\n"
+			+ "  merge combines the partial results of the --shard runs into <db_output>\n"
+			+ "  diff writes the metrics added, removed and changed from <old> to <new>, databases or paths to\n"
+			+ "  parse, ranked by regression: a metric_deltas table in <output>, or JSON lines with --format ndjson\n"
+			+ "  <Path_to_parse> is a directory of class files or a jar, war or ear archive, or several of them\n"
+			+ "  separated by the path separator as in a class path; the archives found in directories are read\n"
+			+ "  --threads N          analysis threads (default: available processors)\n"
+			+ "  --walk-threads N     threads listing directories, for slow file systems (default 1)\n"
+			+ "  --skip-symlinks      do not follow symbolic links to directories\n"
+			+ "  --stream             write classes while they are analyzed, through a bounded queue\n"
+			+ "  --queue-size N       classes held by the --stream queue (default 1024)\n"
+			+ "  --incremental        update an existing database, analyzing only new or changed class files\n"
+			+ "  --batch-size N       rows sent to SQLite per executeBatch (default 1000)\n"
+			+ "  --commit-every N     commit after N rows, 0 = one transaction per run (default 0)\n"
+			+ "  --journal-mode MODE  SQLite journal_mode pragma (DELETE, WAL, MEMORY, OFF...)\n"
+			+ "  --synchronous MODE   SQLite synchronous pragma (FULL, NORMAL, OFF)\n"
+			+ "  --cache-size N       SQLite cache_size pragma (pages, negative = KiB)\n"
+			+ "  --schema SCHEMA      flat (default) or normalized: integer keyed tables behind views of the flat tables\n"
+			+ "  --format FORMAT      sqlite (default), csv or ndjson (<db_output> is a directory with a file per\n"
+			+ "                       table) or columnar (binary file with dictionary encoded strings)\n"
+			+ "  --report FILE        write timings, counters and latency histograms of the run as JSON\n"
+			+ "  --exec PATH          JaCoCo .exec file, or directory searched for them, adds covered and missed\n"
+			+ "                       counts (repeatable, the files are merged)\n"
+			+ "  --watch              keep running and update the database when class files change (implies\n"
+			+ "                       --incremental, <Path_to_parse> must be one directory, only\n"
+			+ "                       its class files are watched)\n"
+			+ "  --engine ENGINE      jacoco (default) or asm: same metrics read straight from the bytecode, faster,\n"
+			+ "                       adds CountClassCoupled and CountInstructions, no --exec\n"
+			+ "  --snapshot COMMIT    also keep the values of this run in the history tables of the database, labeled\n"
+			+ "                       with COMMIT; only the values changed since the previous snapshot are stored\n"
+			+ "  --summary FILE       write the largest values of every metric and the outcome of the rules as JSON\n"
+			+ "  --top N              values per metric and level in the summary (default 10)\n"
+			+ "  --fail-on RULE       exit with status 1 if a row violates RULE, level.metric>limit with the operators\n"
+			+ "                       > >= < <=, e.g. method.Cyclomatic>15 (repeatable)\n"
+			+ "  --duplicates POLICY  identical class files found several times are analyzed once and every location\n"
+			+ "                       is recorded; once (default): the class counts once in the rollups, each: every\n"
+			+ "                       copy counts\n"
+			+ "  --shards N           write the rows on N threads, partitioned by package, each in its own temporary\n"
+			+ "                       database next to <db_output>, then merged into <db_output> (default 1)\n"
+			+ "  --include PATTERN    only analyze the classes matching PATTERN (repeatable), a class name with * and ?\n"
+			+ "                       within a segment and ** for any packages: com.acme.**, **.*Dto; directories\n"
+			+ "                       are matched as packages relative to <Path_to_parse>\n"
+			+ "  --exclude PATTERN    skip the classes matching PATTERN (repeatable), same syntax, wins over --include\n"
+			+ "  --sources DIR        directory of the .java files, by package (repeatable, searched in order), adds\n"
+			+ "                       CountLine, CountLineComment and CountLineBlank read from the sources\n"
+			+ "  --shard I/N          only analyze the I-th of N slices of the classes (1 <= I <= N), chosen by a hash\n"
+			+ "                       of the class name, and write a partial result to <db_output>, see merge";
+
+	final List<String> arguments = new ArrayList<String>();
+
+	int threads = Runtime.getRuntime().availableProcessors();
+	int walkThreads = 1;
+	boolean skipSymlinks;
+	boolean stream;
+	boolean incremental;
+	boolean watch;
+	int queueSize = 1024;
+	int batchSize = 1000;
+	int commitEvery = 0;
+	String journalMode;
+	String synchronous;
+	Integer cacheSize;
+	boolean normalized;
+	String format = "sqlite";
+	String report;
+	final List<String> exec = new ArrayList<String>();
+	boolean asm;
+	String snapshot;
+	String summary;
+	int top = 10;
+	final List<MetricsReport.Rule> rules = new ArrayList<MetricsReport.Rule>();
+	boolean countCopies;
+	int shards = 1;
+	final List<String> include = new ArrayList<String>();
+	final List<String> exclude = new ArrayList<String>();
+	final List<String> sources = new ArrayList<String>();
+	/** slice of <code>--shard</code>, from 0, and number of slices, 0 without */
+	int shard;
+	int shardCount;
+
+	/**
+	 * @return the filter of <code>--include</code>, <code>--exclude</code>
+	 *         and <code>--shard</code>, <code>null</code> without them
+	 */
+	ClassFilter filter() {
+		return include.isEmpty() && exclude.isEmpty() && shardCount == 0 ? null
+				: new ClassFilter(include, exclude, shard, shardCount);
+	}
+
+	/**
+	 * Tells whether the run builds a {@link MetricsReport}.
+	 */
+	boolean report() {
+		return summary != null || !rules.isEmpty();
+	}
+
+	/**
+	 * Parses the given program arguments.
+	 *
+	 * @param args
+	 *            program arguments
+	 * @return parsed options
+	 * @throws IllegalArgumentException
+	 *             if an option is unknown or has an invalid value
+	 */
+	static Options parse(final String[] args) {
+		final Options options = new Options();
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if (!arg.startsWith("--")) {
+				options.arguments.add(arg);
+				continue;
+			}
+			if ("--skip-symlinks".equals(arg)) {
+				options.skipSymlinks = true;
+				continue;
+			}
+			if ("--stream".equals(arg)) {
+				options.stream = true;
+				continue;
+			}
+			if ("--incremental".equals(arg)) {
+				options.incremental = true;
+				continue;
+			}
+			if ("--watch".equals(arg)) {
+				options.watch = true;
+				options.incremental = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for option " + arg);
+			}
+			final String value = args[++i];
+			if ("--threads".equals(arg)) {
+				options.threads = positive(arg, value);
+			} else if ("--walk-threads".equals(arg)) {
+				options.walkThreads = positive(arg, value);
+			} else if ("--queue-size".equals(arg)) {
+				options.queueSize = positive(arg, value);
+			} else if ("--batch-size".equals(arg)) {
+				options.batchSize = positive(arg, value);
+			} else if ("--commit-every".equals(arg)) {
+				options.commitEvery = number(arg, value);
+				if (options.commitEvery < 0) {
+					throw new IllegalArgumentException("Option " + arg + " must be 0 or greater: " + value);
+				}
+			} else if ("--journal-mode".equals(arg)) {
+				options.journalMode = value;
+			} else if ("--synchronous".equals(arg)) {
+				options.synchronous = value;
+			} else if ("--cache-size".equals(arg)) {
+				options.cacheSize = Integer.valueOf(number(arg, value));
+			} else if ("--schema".equals(arg)) {
+				options.normalized = schema(arg, value);
+			} else if ("--format".equals(arg)) {
+				options.format = format(arg, value);
+			} else if ("--report".equals(arg)) {
+				options.report = value;
+			} else if ("--exec".equals(arg)) {
+				options.exec.add(value);
+			} else if ("--engine".equals(arg)) {
+				options.asm = engine(arg, value);
+			} else if ("--snapshot".equals(arg)) {
+				options.snapshot = value;
+			} else if ("--include".equals(arg)) {
+				options.include.add(value);
+			} else if ("--exclude".equals(arg)) {
+				options.exclude.add(value);
+			} else if ("--sources".equals(arg)) {
+				options.sources.add(value);
+			} else if ("--shard".equals(arg)) {
+				shard(options, arg, value);
+			} else if ("--shards".equals(arg)) {
+				options.shards = positive(arg, value);
+			} else if ("--duplicates".equals(arg)) {
+				options.countCopies = duplicates(arg, value);
+			} else if ("--summary".equals(arg)) {
+				options.summary = value;
+			} else if ("--top".equals(arg)) {
+				options.top = positive(arg, value);
+			} else if ("--fail-on".equals(arg)) {
+				options.rules.add(MetricsReport.Rule.parse(value));
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		if (options.incremental && options.normalized) {
+			throw new IllegalArgumentException("--incremental is only supported with the flat schema");
+		}
+		if (options.incremental && !options.exec.isEmpty()) {
+			// coverage changes with the exec files, not with the class files
+			throw new IllegalArgumentException("--incremental can't be combined with --exec");
+		}
+		if (options.asm && !options.exec.isEmpty()) {
+			throw new IllegalArgumentException("--exec needs --engine jacoco");
+		}
+		if (!"sqlite".equals(options.format) && (options.incremental || options.normalized)) {
+			throw new IllegalArgumentException("--incremental and --schema need --format sqlite");
+		}
+		if (options.snapshot != null && (options.normalized || !"sqlite".equals(options.format))) {
+			throw new IllegalArgumentException("--snapshot needs --format sqlite and the flat schema");
+		}
+		try {
+			options.filter();
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid value for option --include or --exclude: " + e.getMessage());
+		}
+		if (options.incremental && (options.summary != null || !options.rules.isEmpty())) {
+			// an update only sees the rows of the changed classes
+			throw new IllegalArgumentException("--summary and --fail-on can't be combined with --incremental");
+		}
+		if (options.shards > 1 && (options.incremental || options.normalized || options.snapshot != null
+				|| !"sqlite".equals(options.format))) {
+			throw new IllegalArgumentException(
+					"--shards needs --format sqlite and the flat schema, without --incremental or --snapshot");
+		}
+		if (options.incremental && options.countCopies) {
+			throw new IllegalArgumentException("--duplicates each can't be combined with --incremental");
+		}
+		if (options.incremental && !options.sources.isEmpty()) {
+			// the rollups of an update are rebuilt from the class rows only
+			throw new IllegalArgumentException("--sources can't be combined with --incremental");
+		}
+		if (options.shardCount > 0 && (options.incremental || options.normalized || options.snapshot != null
+				|| !"sqlite".equals(options.format) || options.shards > 1 || !options.sources.isEmpty()
+				|| options.report())) {
+			// the partial has no final rollups to check or snapshot, and a file may span several slices
+			throw new IllegalArgumentException("--shard needs --format sqlite and the flat schema, without "
+					+ "--incremental, --snapshot, --shards, --sources, --summary or --fail-on");
+		}
+		if (options.snapshot != null && options.watch) {
+			throw new IllegalArgumentException("--snapshot can't be combined with --watch");
+		}
+		return options;
+	}
+
+	private static void shard(final Options options, final String option, final String value) {
+		final int slash = value.indexOf('/');
+		if (slash < 0) {
+			throw new IllegalArgumentException("Invalid value for option " + option + ": " + value);
+		}
+		final int shard = positive(option, value.substring(0, slash));
+		final int count = positive(option, value.substring(slash + 1));
+		if (shard > count) {
+			throw new IllegalArgumentException("Invalid value for option " + option + ": " + value);
+		}
+		options.shard = shard - 1;
+		options.shardCount = count;
+	}
+
+	private static boolean schema(final String option, final String value) {
+		if ("normalized".equals(value)) {
+			return true;
+		}
+		if (!"flat".equals(value)) {
+			throw new IllegalArgumentException("Invalid value for option " + option + ": " + value);
+		}
+		return false;
+	}
+
+	private static boolean duplicates(final String option, final String value) {
+		if ("each".equals(value)) {
+			return true;
+		}
+		if (!"once".equals(value)) {
+			throw new IllegalArgumentException("Invalid value for option " + option + ": " + value);
+		}
+		return false;
+	}
+
+	private static boolean engine(final String option, final String value) {
+		if ("asm".equals(value)) {
+			return true;
+		}
+		if (!"jacoco".equals(value)) {
+			throw new IllegalArgumentException("Invalid value for option " + option + ": " + value);
+		}
+		return false;
+	}
+
+	private static String format(final String option, final String value) {
+		if (!Arrays.asList("sqlite", "csv", "ndjson", "columnar").contains(value)) {
+			throw new IllegalArgumentException("Invalid value for option " + option + ": " + value);
+		}
+		return value;
+	}
+
+	private static int number(final String option, final String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number for option " + option + ": " + value);
+		}
+	}
+
+	private static int positive(final String option, final String value) {
+		final int n = number(option, value);
+		if (n <= 0) {
+			throw new IllegalArgumentException("Option " + option + " must be greater than 0: " + value);
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,275 @@
+package br.com.george.metrics;
+
+import org.jacoco.core.analysis.Analyzer;
+import org.jacoco.core.analysis.IClassCoverage;
+import org.jacoco.core.analysis.ICoverageVisitor;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.internal.data.CRC64;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Analyzes classes on several threads. Every worker owns its
+ * {@link Analyzer} and takes {@link ClassSource}s from a shared queue that is
+ * filled while the inputs are scanned; the
+ * analyzed classes are reported to a thread safe visitor ({@link ClassCollector} or
+ * {@link StreamingWriter}) which makes the outcome independent of how the
+ * files were distributed.
+ */
+final class ParallelAnalyzer {
+
+	/** queued once per worker when the scan is complete */
+	private static final ClassSource END = new ClassSource(null, null) {
+		@Override
+		void read(final Handler handler) {
+		}
+
+		@Override
+		long size() {
+			return 0;
+		}
+
+		@Override
+		long lastModified() {
+			return 0;
+		}
+	};
+
+	private final ExecutionDataStore executionData;
+	private final int threads;
+	private final RunStats stats;
+	private final IncrementalIndex index;
+	private final boolean coverage;
+	private final boolean asm;
+	private final ClassCopies copies;
+
+	/**
+	 * @param executionData
+	 *            execution data shared read-only by all workers
+	 * @param threads
+	 *            number of workers
+	 * @param stats
+	 *            statistics of the run, also printing the progress
+	 * @param index
+	 *            index of the previous run to skip unchanged class files, or
+	 *            <code>null</code> to analyze everything
+	 * @param coverage
+	 *            keep the covered and missed counts of every class, when
+	 *            execution data was loaded
+	 * @param asm
+	 *            compute the metrics with {@link AsmAnalyzer} instead of
+	 *            JaCoCo's analyzer, no coverage then
+	 * @param copies
+	 *            identical class files already seen, to analyze only one
+	 *            copy, or <code>null</code> to analyze every copy
+	 */
+	ParallelAnalyzer(final ExecutionDataStore executionData, final int threads, final RunStats stats,
+			final IncrementalIndex index, final boolean coverage, final boolean asm, final ClassCopies copies) {
+		this.executionData = executionData;
+		this.coverage = coverage;
+		this.threads = threads;
+		this.stats = stats;
+		this.index = index;
+		this.asm = asm;
+		this.copies = copies;
+	}
+
+	/**
+	 * Analyzes all classes of the given inputs. The inputs are scanned on the
+	 * calling thread while the workers already analyze the sources found so
+	 * far.
+	 *
+	 * @param visitor
+	 *            thread safe visitor receiving every analyzed class
+	 * @throws IOException
+	 *             if a class can't be read or analyzed
+	 */
+	void analyze(final ClassInputs inputs, final ClassMetricsVisitor visitor) throws IOException {
+		run(inputs, visitor);
+	}
+
+	/**
+	 * Reads all classes of the given inputs without analyzing them, only to
+	 * register their names with the copies, see
+	 * {@link ClassCopies#found(long, String, String)}. The class names are
+	 * not tested by the filter: the classes of a name are all kept or all
+	 * dropped.
+	 */
+	void register(final ClassInputs inputs) throws IOException {
+		run(inputs, null);
+	}
+
+	/**
+	 * @param visitor
+	 *            receives the analyzed classes, <code>null</code> to only
+	 *            register them
+	 */
+	private void run(final ClassInputs inputs, final ClassMetricsVisitor visitor) throws IOException {
+		final BlockingQueue<ClassSource> queue = new LinkedBlockingQueue<ClassSource>();
+		final AtomicBoolean failed = new AtomicBoolean();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int i = 0; i < threads; i++) {
+				futures.add(executor.submit(new Worker(queue, failed, visitor)));
+			}
+			final long wall = System.nanoTime();
+			final long cpu = RunStats.cpuTime();
+			try {
+				inputs.scan(new Consumer<ClassSource>() {
+					public void accept(final ClassSource source) {
+						if (failed.get()) {
+							throw new IllegalStateException("Analysis failed");
+						}
+						queue.add(source);
+					}
+				}, visitor != null);
+			} catch (IOException | RuntimeException e) {
+				if (!failed.get()) {
+					throw e;
+				}
+				// the worker error is reported below
+			} finally {
+				stats.since(RunStats.Phase.DISCOVERY, wall, cpu);
+				for (int i = 0; i < threads; i++) {
+					queue.add(END);
+				}
+			}
+			for (Future<Void> future : futures) {
+				get(future);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void get(final Future<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while analyzing classes", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private final class Worker implements Callable<Void>, ClassSource.Handler, ICoverageVisitor {
+
+		private final BlockingQueue<ClassSource> queue;
+		private final AtomicBoolean failed;
+		/** <code>null</code> when the classes are only registered */
+		private final ClassMetricsVisitor visitor;
+		private final Analyzer analyzer;
+		private final AsmAnalyzer asmAnalyzer;
+		private ClassSource source;
+		private String location;
+		private String path;
+		/** analysis time of the current source, taken out of its read time */
+		private long analyzeWall;
+		private long analyzeCpu;
+
+		Worker(final BlockingQueue<ClassSource> queue, final AtomicBoolean failed, final ClassMetricsVisitor visitor) {
+			this.queue = queue;
+			this.failed = failed;
+			this.visitor = visitor;
+			this.analyzer = asm ? null : new Analyzer(executionData, this);
+			this.asmAnalyzer = asm ? new AsmAnalyzer() : null;
+		}
+
+		public Void call() throws IOException, InterruptedException {
+			try {
+				while ((source = queue.take()) != END) {
+					if (failed.get() || index != null && index.unchanged(source)) {
+						continue;
+					}
+					final long wall = System.nanoTime();
+					final long cpu = RunStats.cpuTime();
+					analyzeWall = 0;
+					analyzeCpu = 0;
+					source.read(this);
+					stats.add(RunStats.Phase.READ, System.nanoTime() - wall - analyzeWall,
+							RunStats.cpuTime() - cpu - analyzeCpu);
+					if (visitor != null) {
+						stats.fileDone();
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				// stop the scan and the other workers, the run fails anyway
+				failed.set(true);
+				throw e;
+			}
+			return null;
+		}
+
+		public void handle(final String location, final String name, final byte[] bytes) throws IOException {
+			if (index != null && !index.changed(name, bytes, source.lastModified())) {
+				return;
+			}
+			if (visitor == null) {
+				copies.found(CRC64.classId(bytes), ClassFileReader.className(name, bytes), name);
+				return;
+			}
+			this.location = location;
+			this.path = name;
+			stats.bytesRead.add(bytes.length);
+			if (copies != null && !copies.first(CRC64.classId(bytes), location, name)) {
+				stats.classCopies.increment();
+				return;
+			}
+			final long wall = System.nanoTime();
+			final long cpu = RunStats.cpuTime();
+			if (asmAnalyzer != null) {
+				final ClassMetrics cm = asmAnalyzer.analyze(location, name, bytes);
+				if (cm != null) {
+					visit(cm);
+				}
+			} else {
+				analyzer.analyzeClass(bytes, name);
+			}
+			final long elapsed = System.nanoTime() - wall;
+			final long elapsedCpu = RunStats.cpuTime() - cpu;
+			stats.add(RunStats.Phase.ANALYZE, elapsed, elapsedCpu);
+			stats.classAnalysis.record(elapsed);
+			analyzeWall += elapsed;
+			analyzeCpu += elapsedCpu;
+		}
+
+		public void visitCoverage(final IClassCoverage coverage) {
+			visit(ClassMetrics.of(location, path, coverage, ParallelAnalyzer.this.coverage));
+		}
+
+		private void visit(final ClassMetrics cm) {
+			stats.classes.increment();
+			stats.methods.add(cm.methods.size());
+			if (copies != null && !copies.analyzed(cm)) {
+				// a different class with the same name is kept, reported by the copies
+				return;
+			}
+			if (index != null) {
+				index.analyzed(cm);
+			}
+			visitor.visit(cm);
+		}
+
+	}
+
+}
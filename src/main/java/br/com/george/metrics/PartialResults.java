@@ -0,0 +1,201 @@
+package br.com.george.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Partial results of <code>--shard i/N</code> and the <code>merge</code>
+ * command combining them.
+ * <p>
+ * A partial is a database (script-partial.sql) holding the class, method and
+ * location rows of its slice as they are, and what can't be recomputed from
+ * them without reading them again: the package and file rollups as cells
+ * flagged sum or max (rollup_cells), and the method and class distributions
+ * as sketches (metric_sketches). Since every class is in one slice, the
+ * merged rows are the rows of a single run. Each partial also records the
+ * class files of the inputs and those of its slice, so that the merge can
+ * tell whether the slices partition the same inputs.
+ * <p>
+ * The merge reads each partial once: its rows are copied with
+ * <code>ATTACH</code> and <code>INSERT ... SELECT</code>, its cells added to
+ * a temporary table and its sketches merged in memory. The rollups are then
+ * grouped from the cells, their distributions computed from the result, and
+ * the unique indexes built once the tables are loaded (indexes-sharded.sql).
+ */
+final class PartialResults {
+
+	/** format of the partials, checked by the merge */
+	static final int VERSION = 2;
+
+	/** tables copied as they are */
+	private static final String[] TABLES = { "class_metrics", "method_metrics", "class_locations" };
+
+	private static String infoSql = "INSERT INTO partial_info (shard,shards,version,classes,kept) VALUES (?,?,?,?,?) ";
+	private static String readInfoSql = "SELECT shard, shards, version, classes, kept FROM partial.partial_info";
+	private static String cellsSql = "create temp table cells( level varchar, package varchar, file varchar, metric varchar, max integer, value double)";
+	private static String copyCellsSql = "INSERT INTO temp.cells SELECT * FROM partial.rollup_cells";
+	private static String sketchSql = "SELECT level, metric, sketch FROM partial.metric_sketches";
+	private static String pkgSql = "INSERT INTO main.package_metrics SELECT package, metric, CASE WHEN max(max) = 1 THEN max(value) ELSE sum(value) END FROM temp.cells WHERE level='package' GROUP BY package, metric";
+	private static String fileSql = "INSERT INTO main.file_metrics SELECT package, file, metric, CASE WHEN max(max) = 1 THEN max(value) ELSE sum(value) END FROM temp.cells WHERE level='file' GROUP BY package, file, metric";
+	private static String readPkgSql = "SELECT metric, value FROM main.package_metrics";
+	private static String readFileSql = "SELECT metric, value FROM main.file_metrics";
+
+	private PartialResults() {
+	}
+
+	/**
+	 * Writes what identifies a partial and the sketches of its method and
+	 * class distributions, after its rows and cells.
+	 *
+	 * @param shard
+	 *            slice of the partial, from 0
+	 * @param filter
+	 *            filter of the run, with the counts of the class files it
+	 *            tested
+	 */
+	static void finish(final SqliteWriter writer, final Distributions distributions, final int shard,
+			final int shards, final ClassFilter filter) throws SQLException {
+		// the partial is a single unit, its sketches have no package
+		distributions.writeSketches(writer, null);
+		final SqliteWriter.Batch info = writer.batch(infoSql);
+		final PreparedStatement pstmt = info.stmt();
+		pstmt.setInt(1, shard);
+		pstmt.setInt(2, shards);
+		pstmt.setInt(3, VERSION);
+		pstmt.setLong(4, filter.matched.sum());
+		pstmt.setLong(5, filter.kept.sum());
+		writer.add(info);
+	}
+
+	/**
+	 * Merges the given partials into a new database, one transaction per
+	 * partial.
+	 *
+	 * @param conn
+	 *            connection to an empty database, not in a transaction
+	 * @throws IOException
+	 *             if the partials are not the N slices of one sharded run,
+	 *             or their classes are not all the classes of its inputs
+	 */
+	static void merge(final Connection conn, final List<File> partials, final int batchSize, final RunStats stats,
+			final PrintStream out) throws Exception {
+		final long started = System.nanoTime();
+		try (Statement st = conn.createStatement()) {
+			check(st, partials);
+			Start.runScript(st, "script-sharded.sql");
+			st.execute(cellsSql);
+			final Distributions distributions = new Distributions();
+			long rows = 0;
+			for (File partial : partials) {
+				attach(st, partial);
+				try {
+					conn.setAutoCommit(false);
+					for (String table : TABLES) {
+						rows += st.executeUpdate("INSERT INTO main." + table + " SELECT * FROM partial." + table);
+					}
+					st.executeUpdate(copyCellsSql);
+					try (ResultSet rs = st.executeQuery(sketchSql)) {
+						while (rs.next()) {
+							distributions.merge(rs.getString(1), rs.getString(2),
+									MetricDistribution.fromBytes(rs.getBytes(3)));
+						}
+					}
+					conn.commit();
+				} finally {
+					conn.setAutoCommit(true);
+					st.execute("DETACH DATABASE partial");
+				}
+			}
+			conn.setAutoCommit(false);
+			rows += st.executeUpdate(pkgSql);
+			rows += st.executeUpdate(fileSql);
+			read(st, readPkgSql, distributions, Distributions.PACKAGE);
+			read(st, readFileSql, distributions, Distributions.FILE);
+			st.execute("DROP TABLE temp.cells");
+			final SqliteWriter writer = new SqliteWriter(conn, batchSize, 0, stats);
+			distributions.write(writer);
+			writer.close();
+			Start.runScript(st, "indexes-sharded.sql");
+			stats.rowsWritten.add(rows);
+		}
+		out.printf("Merged %d partials, %d rows in %d ms%n", partials.size(), stats.rowsWritten.sum(),
+				(System.nanoTime() - started) / 1000000);
+	}
+
+	/**
+	 * Checks that the partials are the complete set of slices of one run,
+	 * each given once, and that together they hold every class file of the
+	 * inputs, before anything is written.
+	 */
+	private static void check(final Statement st, final List<File> partials) throws SQLException, IOException {
+		final BitSet seen = new BitSet();
+		int count = 0;
+		long classes = -1;
+		long kept = 0;
+		for (File partial : partials) {
+			attach(st, partial);
+			try (ResultSet rs = st.executeQuery(readInfoSql)) {
+				if (!rs.next() || rs.getInt(3) != VERSION) {
+					throw new IOException(String.format("Error while reading the partial %s.", partial));
+				}
+				final int shard = rs.getInt(1);
+				final int shards = rs.getInt(2);
+				if (count != 0 && shards != count) {
+					throw new IOException(String.format("Partial %s is a slice of %d, not of %d.", partial,
+							Integer.valueOf(shards), Integer.valueOf(count)));
+				}
+				if (seen.get(shard)) {
+					throw new IOException(String.format("Partial %s repeats slice %d/%d.", partial,
+							Integer.valueOf(shard + 1), Integer.valueOf(shards)));
+				}
+				if (classes >= 0 && rs.getLong(4) != classes) {
+					throw new IOException(String.format(
+							"Partial %s was run on %d class files, not on %d: the inputs differ.", partial,
+							Long.valueOf(rs.getLong(4)), Long.valueOf(classes)));
+				}
+				count = shards;
+				seen.set(shard);
+				classes = rs.getLong(4);
+				kept += rs.getLong(5);
+			} catch (SQLException e) {
+				throw new IOException(String.format("Error while reading the partial %s.", partial), e);
+			} finally {
+				st.execute("DETACH DATABASE partial");
+			}
+		}
+		if (seen.cardinality() != count) {
+			throw new IOException(String.format("Missing %d of the %d slices, slice %d/%d first.",
+					Integer.valueOf(count - seen.cardinality()), Integer.valueOf(count),
+					Integer.valueOf(seen.nextClearBit(0) + 1), Integer.valueOf(count)));
+		}
+		if (kept != classes) {
+			throw new IOException(String.format("The partials hold %d of the %d class files of the inputs.",
+					Long.valueOf(kept), Long.valueOf(classes)));
+		}
+	}
+
+	private static void attach(final Statement st, final File partial) throws SQLException, IOException {
+		if (!partial.isFile()) {
+			throw new IOException(String.format("Partial %s not found.", partial));
+		}
+		st.execute("ATTACH DATABASE '" + partial.getPath().replace("'", "''") + "' AS partial");
+	}
+
+	private static void read(final Statement st, final String sql, final Distributions distributions,
+			final String level) throws SQLException {
+		try (ResultSet rs = st.executeQuery(sql)) {
+			while (rs.next()) {
+				distributions.add(level, rs.getString(1), rs.getDouble(2));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package br.com.george.metrics;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the package and file aggregates in memory while classes are
+ * processed. Each (package, metric) and (package, file, metric) cell is
+ * either a sum or a max; the cells are written once at the end of the run
+ * with plain INSERTs.
+ */
+final class Rollup {
+
+	private static String cellSql = "INSERT INTO rollup_cells (level,package,file,metric,max,value) VALUES (?,?,?,?,?,?) ";
+
+	private final Map<String, Map<String, Cell>> packages = new HashMap<String, Map<String, Cell>>();
+	private final Map<String, Map<String, Map<String, Cell>>> files = new HashMap<String, Map<String, Map<String, Cell>>>();
+
+	void addPackage(final String pkg, final String metric, final double value) {
+		packageCell(pkg, metric, false).add(value);
+	}
+
+	void maxPackage(final String pkg, final String metric, final double value) {
+		packageCell(pkg, metric, true).add(value);
+	}
+
+	void addFile(final String pkg, final String file, final String metric, final double value) {
+		fileCell(pkg, file, metric, false).add(value);
+	}
+
+	void maxFile(final String pkg, final String file, final String metric, final double value) {
+		fileCell(pkg, file, metric, true).add(value);
+	}
+
+	/**
+	 * Merges the cells of another rollup into this one.
+	 */
+	void merge(final Rollup other) {
+		for (Map.Entry<String, Map<String, Cell>> pkg : other.packages.entrySet()) {
+			for (Map.Entry<String, Cell> cell : pkg.getValue().entrySet()) {
+				packageCell(pkg.getKey(), cell.getKey(), cell.getValue().max).add(cell.getValue().value);
+			}
+		}
+		for (Map.Entry<String, Map<String, Map<String, Cell>>> pkg : other.files.entrySet()) {
+			for (Map.Entry<String, Map<String, Cell>> file : pkg.getValue().entrySet()) {
+				for (Map.Entry<String, Cell> cell : file.getValue().entrySet()) {
+					fileCell(pkg.getKey(), file.getKey(), cell.getKey(), cell.getValue().max)
+							.add(cell.getValue().value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Inserts every accumulated cell into package_metrics and file_metrics.
+	 *
+	 * @return number of rows written
+	 */
+	int write(final MetricsSink writer) throws Exception {
+		int rows = 0;
+		for (Map.Entry<String, Map<String, Cell>> pkg : packages.entrySet()) {
+			for (Map.Entry<String, Cell> cell : pkg.getValue().entrySet()) {
+				writer.insertPackage(pkg.getKey(), cell.getKey(), cell.getValue().value);
+				rows++;
+			}
+		}
+		for (Map.Entry<String, Map<String, Map<String, Cell>>> pkg : files.entrySet()) {
+			for (Map.Entry<String, Map<String, Cell>> file : pkg.getValue().entrySet()) {
+				for (Map.Entry<String, Cell> cell : file.getValue().entrySet()) {
+					writer.insertFile(pkg.getKey(), file.getKey(), cell.getKey(), cell.getValue().value);
+					rows++;
+				}
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Inserts every accumulated cell, with its kind, into the rollup_cells
+	 * table of a partial result, see {@link PartialResults}.
+	 *
+	 * @return number of rows written
+	 */
+	int writeCells(final SqliteWriter writer) throws SQLException {
+		final SqliteWriter.Batch insert = writer.batch(cellSql);
+		int rows = 0;
+		for (Map.Entry<String, Map<String, Cell>> pkg : packages.entrySet()) {
+			for (Map.Entry<String, Cell> cell : pkg.getValue().entrySet()) {
+				writeCell(writer, insert, Distributions.PACKAGE, pkg.getKey(), null, cell.getKey(), cell.getValue());
+				rows++;
+			}
+		}
+		for (Map.Entry<String, Map<String, Map<String, Cell>>> pkg : files.entrySet()) {
+			for (Map.Entry<String, Map<String, Cell>> file : pkg.getValue().entrySet()) {
+				for (Map.Entry<String, Cell> cell : file.getValue().entrySet()) {
+					writeCell(writer, insert, Distributions.FILE, pkg.getKey(), file.getKey(), cell.getKey(),
+							cell.getValue());
+					rows++;
+				}
+			}
+		}
+		return rows;
+	}
+
+	private static void writeCell(final SqliteWriter writer, final SqliteWriter.Batch insert, final String level,
+			final String pkg, final String file, final String metric, final Cell cell) throws SQLException {
+		final PreparedStatement pstmt = insert.stmt();
+		pstmt.setString(1, level);
+		pstmt.setString(2, pkg);
+		pstmt.setString(3, file);
+		pstmt.setString(4, metric);
+		pstmt.setInt(5, cell.max ? 1 : 0);
+		pstmt.setDouble(6, cell.value);
+		writer.add(insert);
+	}
+
+	private Cell packageCell(final String pkg, final String metric, final boolean max) {
+		return cell(child(packages, pkg), metric, max);
+	}
+
+	private Cell fileCell(final String pkg, final String file, final String metric, final boolean max) {
+		return cell(child(child(files, pkg), file), metric, max);
+	}
+
+	private static <V> Map<String, V> child(final Map<String, Map<String, V>> map, final String key) {
+		Map<String, V> child = map.get(key);
+		if (child == null) {
+			child = new HashMap<String, V>();
+			map.put(key, child);
+		}
+		return child;
+	}
+
+	private static Cell cell(final Map<String, Cell> cells, final String metric, final boolean max) {
+		Cell cell = cells.get(metric);
+		if (cell == null) {
+			cell = new Cell(max);
+			cells.put(metric, cell);
+		}
+		return cell;
+	}
+
+	private static final class Cell {
+
+		final boolean max;
+		double value;
+
+		Cell(final boolean max) {
+			this.max = max;
+		}
+
+		void add(final double v) {
+			value = max ? Math.max(value, v) : value + v;
+		}
+
+	}
+
+}
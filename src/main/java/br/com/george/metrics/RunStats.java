@@ -0,0 +1,292 @@
+package br.com.george.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation of one run: wall and CPU time per {@link Phase}, counters,
+ * latency histograms and a rate limited progress line. Every method is
+ * thread safe; phase times of the worker threads are summed, so the
+ * analysis phases can exceed the wall time of the run.
+ */
+final class RunStats {
+
+	/**
+	 * Where the time goes. Phases overlap: the inputs are discovered while
+	 * the workers read and analyze them, and with <code>--stream</code> the
+	 * rows are aggregated and written at the same time.
+	 */
+	enum Phase {
+		/** listing directories and archives, on the scanning thread */
+		DISCOVERY,
+		/** reading class bytes from files and archives */
+		READ,
+		/** JaCoCo analysis of the class bytes, with the hand-off of its result */
+		ANALYZE,
+		/** turning classes into rows and rollups, without the output */
+		AGGREGATE,
+		/** sending rows to the output: executeBatch and commit, file blocks */
+		WRITE
+	}
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final boolean CPU = THREADS.isCurrentThreadCpuTimeSupported();
+	private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final PrintStream out;
+	private final long started = System.nanoTime();
+	private final LongAdder[] wall = adders(Phase.values().length);
+	private final LongAdder[] cpu = adders(Phase.values().length);
+	private final AtomicLong nextProgress = new AtomicLong(started + PROGRESS_INTERVAL);
+
+	final LongAdder classFiles = new LongAdder();
+	final LongAdder classes = new LongAdder();
+	final LongAdder methods = new LongAdder();
+	final LongAdder bytesRead = new LongAdder();
+	final LongAdder rowsWritten = new LongAdder();
+	/** identical class files not analyzed again, see {@link ClassCopies} */
+	final LongAdder classCopies = new LongAdder();
+	/** different classes with the same name as a class kept, not written */
+	final LongAdder classVersions = new LongAdder();
+	/** sources counted by {@link SourceLines} and sources not found */
+	final LongAdder sourceFiles = new LongAdder();
+	final LongAdder sourcesMissing = new LongAdder();
+
+	/** analysis time of each class */
+	final Histogram classAnalysis = new Histogram();
+	/** time of each batch sent to the output */
+	final Histogram batchWrite = new Histogram();
+
+	/**
+	 * Creates statistics without progress output.
+	 */
+	RunStats() {
+		this(null);
+	}
+
+	/**
+	 * @param out
+	 *            stream for the progress line, or <code>null</code>
+	 */
+	RunStats(final PrintStream out) {
+		this.out = out;
+	}
+
+	private static LongAdder[] adders(final int n) {
+		final LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	/**
+	 * @return CPU time of the current thread in nanoseconds, 0 if the JVM
+	 *         can't measure it
+	 */
+	static long cpuTime() {
+		return CPU ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * Adds time spent in a phase.
+	 */
+	void add(final Phase phase, final long wallNanos, final long cpuNanos) {
+		wall[phase.ordinal()].add(wallNanos);
+		cpu[phase.ordinal()].add(cpuNanos);
+	}
+
+	/**
+	 * Adds the time elapsed since the given start times to a phase.
+	 */
+	void since(final Phase phase, final long wallStart, final long cpuStart) {
+		add(phase, System.nanoTime() - wallStart, cpuTime() - cpuStart);
+	}
+
+	long wall(final Phase phase) {
+		return wall[phase.ordinal()].sum();
+	}
+
+	long cpu(final Phase phase) {
+		return cpu[phase.ordinal()].sum();
+	}
+
+	/**
+	 * Counts a processed class file and prints the progress line at most
+	 * once per second.
+	 */
+	void fileDone() {
+		classFiles.increment();
+		if (out == null) {
+			return;
+		}
+		final long now = System.nanoTime();
+		final long next = nextProgress.get();
+		if (now >= next && nextProgress.compareAndSet(next, now + PROGRESS_INTERVAL)) {
+			final long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - started));
+			out.printf("Analyzed %d classes from %d class files, %d classes/s%n", classes.sum(),
+					classFiles.sum(), classes.sum() * 1000 / elapsed);
+		}
+	}
+
+	/**
+	 * Counts a class not written because a different class with the same
+	 * name was kept, and warns about it.
+	 *
+	 * @param file
+	 *            full name of the class file of the class skipped
+	 */
+	void version(final String name, final String file) {
+		classVersions.increment();
+		(out != null ? out : System.out).printf(
+				"Warning: skipped %s from %s, a different class with the same name was kept%n", name, file);
+	}
+
+	/**
+	 * Prints a one line summary of the run.
+	 */
+	void summary(final PrintStream out) {
+		out.printf("Done: %d classes, %d methods, %d bytes read, %d rows written in %d ms%n", classes.sum(),
+				methods.sum(), bytesRead.sum(), rowsWritten.sum(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+		if (classCopies.sum() > 0) {
+			out.printf("Skipped %d copies of identical classes%n", classCopies.sum());
+		}
+		if (classVersions.sum() > 0) {
+			out.printf("Skipped %d different classes with the name of a class kept%n", classVersions.sum());
+		}
+		if (sourceFiles.sum() > 0 || sourcesMissing.sum() > 0) {
+			out.printf("Counted the lines of %d source files, %d not found%n", sourceFiles.sum(),
+					sourcesMissing.sum());
+		}
+	}
+
+	/**
+	 * Writes the run report as a JSON object.
+	 *
+	 * @param threads
+	 *            number of analysis threads of the run
+	 */
+	void writeJson(final File file, final int threads) throws IOException {
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			w.write("{\n  \"wallMillis\": " + millis(System.nanoTime() - started));
+			w.write(",\n  \"threads\": " + threads);
+			w.write(",\n  \"cpuTimeSupported\": " + CPU);
+			w.write(",\n  \"phases\": {");
+			for (Phase phase : Phase.values()) {
+				w.write(phase.ordinal() == 0 ? "\n" : ",\n");
+				w.write("    \"" + phase.name().toLowerCase(Locale.ROOT) + "\": {\"wallMillis\": "
+						+ millis(wall(phase)) + ", \"cpuMillis\": " + millis(cpu(phase)) + "}");
+			}
+			w.write("\n  },\n  \"counters\": {");
+			w.write("\n    \"classFiles\": " + classFiles.sum());
+			w.write(",\n    \"classes\": " + classes.sum());
+			w.write(",\n    \"methods\": " + methods.sum());
+			w.write(",\n    \"bytesRead\": " + bytesRead.sum());
+			w.write(",\n    \"rowsWritten\": " + rowsWritten.sum());
+			w.write(",\n    \"classCopies\": " + classCopies.sum());
+			w.write(",\n    \"classVersions\": " + classVersions.sum());
+			w.write(",\n    \"sourceFiles\": " + sourceFiles.sum());
+			w.write(",\n    \"sourcesMissing\": " + sourcesMissing.sum());
+			w.write("\n  },\n  \"histograms\": {");
+			w.write("\n    \"classAnalysisMicros\": " + classAnalysis.toJson());
+			w.write(",\n    \"batchWriteMicros\": " + batchWrite.toJson());
+			w.write("\n  }\n}\n");
+		}
+	}
+
+	private static String millis(final long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	/**
+	 * Lock free latency histogram with four buckets per power of two, so a
+	 * percentile is reported within 25% of the recorded value.
+	 */
+	static final class Histogram {
+
+		private final AtomicLongArray counts = new AtomicLongArray(256);
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(final long nanos) {
+			final long v = Math.max(0, nanos);
+			counts.incrementAndGet(bucket(v));
+			sum.add(v);
+			long m;
+			while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+				// retry
+			}
+		}
+
+		long count() {
+			long n = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				n += counts.get(i);
+			}
+			return n;
+		}
+
+		/**
+		 * @return upper bound of the bucket holding the given quantile, in
+		 *         nanoseconds
+		 */
+		long quantile(final double q) {
+			final long n = count();
+			if (n == 0) {
+				return 0;
+			}
+			final long rank = (long) Math.ceil(q * n);
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= rank) {
+					return Math.min(upper(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		String toJson() {
+			final long n = count();
+			return "{\"count\": " + n + ", \"mean\": " + micros(n == 0 ? 0 : sum.sum() / n) + ", \"p50\": "
+					+ micros(quantile(0.5)) + ", \"p90\": " + micros(quantile(0.9)) + ", \"p99\": "
+					+ micros(quantile(0.99)) + ", \"max\": " + micros(max.get()) + "}";
+		}
+
+		private static String micros(final long nanos) {
+			return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+		}
+
+		static int bucket(final long v) {
+			if (v < 4) {
+				return (int) v;
+			}
+			final int exp = 63 - Long.numberOfLeadingZeros(v);
+			return (exp - 1) * 4 + (int) (v >>> (exp - 2) & 3);
+		}
+
+		static long upper(final int bucket) {
+			if (bucket < 4) {
+				return bucket;
+			}
+			final int exp = bucket / 4 + 1;
+			final long lower = (4L + bucket % 4) << (exp - 2);
+			return lower + (1L << (exp - 2)) - 1;
+		}
+
+	}
+
+}
@@ -0,0 +1,323 @@
+package br.com.george.metrics;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Output of <code>--shards</code>: the rows are partitioned by package over
+ * several writer threads, each with its own connection to a temporary
+ * database next to the output, so that the inserts are not serialized on
+ * one connection. {@link #merge(Connection, String, int)} then copies the
+ * shards into the output with <code>ATTACH</code> and
+ * <code>INSERT ... SELECT</code>.
+ * <p>
+ * All the rows of a package go to the same shard and the rollups are still
+ * computed by the single {@link MetricsRecorder}, so the output is the same
+ * as with one writer. Shards and output are created without keys
+ * (script-sharded.sql), the unique indexes are built once the output is
+ * loaded (indexes-sharded.sql).
+ */
+final class ShardedWriter implements MetricsSink {
+
+	/** tables written by the shards, the distributions go to the output directly */
+	private static final String[] TABLES = { "package_metrics", "file_metrics", "class_metrics", "method_metrics",
+			"class_locations" };
+
+	/** rows handed to a shard at once */
+	private static final int CHUNK = 1024;
+
+	/** chunks queued per shard before the recorder blocks */
+	private static final int QUEUED = 16;
+
+	private static final List<Row> END = new ArrayList<Row>();
+
+	private final Shard[] shards;
+	private final RunStats stats;
+
+	/**
+	 * Creates the shard databases and starts their writers.
+	 *
+	 * @param sqlfile
+	 *            the output, the shards are named after it
+	 * @param count
+	 *            number of shards
+	 * @param batchSize
+	 *            number of pending rows that triggers an executeBatch
+	 * @param stats
+	 *            receives the write time of the shards once they are closed
+	 */
+	ShardedWriter(final String sqlfile, final int count, final int batchSize, final RunStats stats)
+			throws Exception {
+		this.stats = stats;
+		this.shards = new Shard[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				shards[i] = new Shard(file(sqlfile, i), batchSize);
+			}
+		} catch (Exception e) {
+			close();
+			throw e;
+		}
+	}
+
+	static File file(final String sqlfile, final int shard) {
+		return new File(sqlfile + ".shard" + shard);
+	}
+
+	public void insertPackage(final String pkg, final String metric, final double value) {
+		shard(pkg).add(new Row(Row.PACKAGE, pkg, null, null, null, metric, value));
+	}
+
+	public void insertFile(final String pkg, final String file, final String metric, final double value) {
+		shard(pkg).add(new Row(Row.FILE, pkg, file, null, null, metric, value));
+	}
+
+	public void insertClass(final String pkg, final String file, final String cls, final String metric,
+			final double value) {
+		shard(pkg).add(new Row(Row.CLASS, pkg, file, cls, null, metric, value));
+	}
+
+	public void insertMethod(final String pkg, final String file, final String cls, final String method,
+			final String metric, final double value) {
+		shard(pkg).add(new Row(Row.METHOD, pkg, file, cls, method, metric, value));
+	}
+
+	public void insertLocation(final String pkg, final String file, final String cls, final String location) {
+		shard(pkg).add(new Row(Row.LOCATION, pkg, file, cls, location, null, 0));
+	}
+
+	private Shard shard(final String pkg) {
+		final int hash = pkg == null ? 0 : pkg.hashCode();
+		return shards[(hash & Integer.MAX_VALUE) % shards.length];
+	}
+
+	/**
+	 * Waits for the shards to write their remaining rows and closes them.
+	 *
+	 * @throws SQLException
+	 *             the first failure of a shard
+	 */
+	public void close() throws SQLException {
+		SQLException failure = null;
+		for (Shard shard : shards) {
+			if (shard != null) {
+				shard.finish();
+			}
+		}
+		for (Shard shard : shards) {
+			if (shard == null) {
+				continue;
+			}
+			try {
+				shard.close();
+			} catch (SQLException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+			stats.add(RunStats.Phase.WRITE, shard.stats.wall(RunStats.Phase.WRITE),
+					shard.stats.cpu(RunStats.Phase.WRITE));
+		}
+		if (failure != null) {
+			for (Shard shard : shards) {
+				if (shard != null) {
+					shard.file.delete();
+				}
+			}
+			throw failure;
+		}
+	}
+
+	/**
+	 * Copies the shards into the output, one transaction per shard, and
+	 * deletes them, also when the copy fails.
+	 *
+	 * @param conn
+	 *            connection to the output, not in a transaction
+	 */
+	static void merge(final Connection conn, final String sqlfile, final int count) throws SQLException {
+		try (Statement st = conn.createStatement()) {
+			for (int i = 0; i < count; i++) {
+				final File file = file(sqlfile, i);
+				st.execute("ATTACH DATABASE '" + file.getPath().replace("'", "''") + "' AS shard");
+				try {
+					conn.setAutoCommit(false);
+					for (String table : TABLES) {
+						st.executeUpdate("INSERT INTO main." + table + " SELECT * FROM shard." + table);
+					}
+					conn.commit();
+				} finally {
+					conn.setAutoCommit(true);
+					st.execute("DETACH DATABASE shard");
+				}
+			}
+		} finally {
+			for (int i = 0; i < count; i++) {
+				file(sqlfile, i).delete();
+			}
+		}
+	}
+
+	/**
+	 * A row of one of the {@link #TABLES}.
+	 */
+	private static final class Row {
+
+		static final int PACKAGE = 0;
+		static final int FILE = 1;
+		static final int CLASS = 2;
+		static final int METHOD = 3;
+		static final int LOCATION = 4;
+
+		final int table;
+		final String pkg;
+		final String file;
+		final String cls;
+		/** method, or location of a class_locations row */
+		final String name;
+		final String metric;
+		final double value;
+
+		Row(final int table, final String pkg, final String file, final String cls, final String name,
+				final String metric, final double value) {
+			this.table = table;
+			this.pkg = pkg;
+			this.file = file;
+			this.cls = cls;
+			this.name = name;
+			this.metric = metric;
+			this.value = value;
+		}
+
+		void write(final SqliteWriter writer) throws SQLException {
+			switch (table) {
+			case PACKAGE:
+				writer.insertPackage(pkg, metric, value);
+				break;
+			case FILE:
+				writer.insertFile(pkg, file, metric, value);
+				break;
+			case CLASS:
+				writer.insertClass(pkg, file, cls, metric, value);
+				break;
+			case METHOD:
+				writer.insertMethod(pkg, file, cls, name, metric, value);
+				break;
+			default:
+				writer.insertLocation(pkg, file, cls, name);
+			}
+		}
+
+	}
+
+	/**
+	 * One temporary database and the thread writing to it. Rows are queued
+	 * in chunks, the queue is bounded so that the recorder can't run ahead
+	 * of a slow shard.
+	 */
+	private static final class Shard {
+
+		final RunStats stats = new RunStats();
+		final File file;
+		private final Connection conn;
+		private final SqliteWriter writer;
+		private final BlockingQueue<List<Row>> queue = new ArrayBlockingQueue<List<Row>>(QUEUED);
+		private final Thread thread;
+		private List<Row> pending = new ArrayList<Row>(CHUNK);
+		private volatile SQLException failure;
+
+		Shard(final File file, final int batchSize) throws Exception {
+			this.file = file;
+			file.delete();
+			conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+			try (Statement st = conn.createStatement()) {
+				// thrown away if the run fails, no need for a journal
+				st.execute("PRAGMA journal_mode=OFF");
+				st.execute("PRAGMA synchronous=OFF");
+				Start.runScript(st, "script-sharded.sql");
+			}
+			writer = new SqliteWriter(conn, batchSize, 0, stats);
+			thread = new Thread(new Runnable() {
+				public void run() {
+					drain();
+				}
+			}, "metrics-shard-" + file.getName());
+			thread.start();
+		}
+
+		void add(final Row row) {
+			pending.add(row);
+			if (pending.size() >= CHUNK) {
+				put(pending);
+				pending = new ArrayList<Row>(CHUNK);
+			}
+		}
+
+		void finish() {
+			if (!pending.isEmpty()) {
+				put(pending);
+				pending = new ArrayList<Row>(0);
+			}
+			put(END);
+		}
+
+		private void put(final List<Row> rows) {
+			if (failure != null && rows != END) {
+				throw new IllegalStateException("Shard failed", failure);
+			}
+			try {
+				queue.put(rows);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while queueing rows", e);
+			}
+		}
+
+		private void drain() {
+			try {
+				List<Row> rows;
+				while ((rows = queue.take()) != END) {
+					if (failure != null) {
+						// keep draining so that the recorder never blocks
+						continue;
+					}
+					try {
+						for (Row row : rows) {
+							row.write(writer);
+						}
+					} catch (SQLException e) {
+						failure = e;
+					} catch (RuntimeException e) {
+						failure = new SQLException("Error while writing " + file, e);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void close() throws SQLException {
+			try {
+				thread.join();
+				if (failure != null) {
+					throw failure;
+				}
+				writer.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while writing " + file, e);
+			} finally {
+				conn.close();
+			}
+		}
+
+	}
+
+}
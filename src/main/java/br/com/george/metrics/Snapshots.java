@@ -0,0 +1,231 @@
+package br.com.george.metrics;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * History of the metric values of every run made with
+ * <code>--snapshot</code>, kept in the same database as the latest state.
+ * <p>
+ * Each run is a row of the runs table. A value is stored once per interval
+ * of runs where it did not change: the *_history tables hold
+ * <code>valid_from</code> (first run with the value) and
+ * <code>valid_to</code> (first run without it, <code>null</code> while
+ * current). A run only adds rows for the values added or changed since the
+ * previous run and closes the intervals of the changed and removed ones.
+ * The *_metrics_at views give the full state of any run, and the primary
+ * keys make the trend of one entity a range scan.
+ */
+final class Snapshots {
+
+	private static final String TABLES_SQL = "SELECT count(*) FROM sqlite_master WHERE type='table' AND name='runs'";
+	private static final String RUN_SQL = "INSERT INTO runs (commit_id, timestamp) VALUES (?,?)";
+
+	/** latest state, emptied when it is rebuilt from scratch */
+	private static final String[] STATE_TABLES = { "method_metrics", "class_metrics", "file_metrics",
+			"package_metrics", "class_locations", "metric_distributions", "metric_distribution_bins" };
+
+	private static final Level[] LEVELS = { new Level("package", "package"),
+			new Level("file", "package, file"), new Level("class", "package, file, class"),
+			new Level("method", "package, file, class, method") };
+
+	private Snapshots() {
+	}
+
+	/**
+	 * Tells whether the given database already holds snapshots.
+	 */
+	static boolean exists(final String sqlfile) throws SQLException {
+		if (!new File(sqlfile).isFile()) {
+			return false;
+		}
+		try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + sqlfile);
+				Statement st = conn.createStatement();
+				ResultSet rs = st.executeQuery(TABLES_SQL)) {
+			return rs.next() && rs.getInt(1) == 1;
+		}
+	}
+
+	/**
+	 * Empties the latest state before a full run, keeping the history. The
+	 * tables of <code>--incremental</code> are dropped too, they would no
+	 * longer describe the state.
+	 */
+	static void clear(final Connection conn) throws SQLException {
+		conn.setAutoCommit(false);
+		try (Statement st = conn.createStatement()) {
+			st.executeUpdate("DROP TABLE IF EXISTS class_files");
+			st.executeUpdate("DROP TABLE IF EXISTS metric_sketches");
+			for (String table : STATE_TABLES) {
+				st.executeUpdate("DELETE FROM " + table);
+			}
+			conn.commit();
+		} finally {
+			conn.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Adds a run, in the transaction of the writer.
+	 *
+	 * @param commit
+	 *            commit (or any label) the run was made on
+	 * @return id of the run
+	 */
+	static int begin(final Connection conn, final String commit) throws SQLException {
+		try (PreparedStatement pstmt = conn.prepareStatement(RUN_SQL)) {
+			pstmt.setString(1, commit);
+			pstmt.setLong(2, System.currentTimeMillis());
+			pstmt.executeUpdate();
+		}
+		try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT last_insert_rowid()")) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+	/**
+	 * Stores the differences between the latest state, as written by this
+	 * run, and the values of the previous snapshot. Both are read in one
+	 * sorted pass per level, so memory does not grow with the database.
+	 */
+	static void record(final Connection conn, final SqliteWriter writer, final int run, final String commit,
+			final PrintStream out) throws SQLException {
+		writer.flush();
+		final int[] counts = new int[3];
+		for (Level level : LEVELS) {
+			level.record(conn, writer, run, counts);
+		}
+		out.println("Snapshot " + run + " (" + commit + "): " + counts[0] + " values added, " + counts[1]
+				+ " changed, " + counts[2] + " removed");
+	}
+
+	/**
+	 * The metric table and the history table of one level.
+	 */
+	private static final class Level {
+
+		private final int keys;
+		private final String diffSql;
+		private final String[] stageSql;
+		private final String addSql;
+		private final String closeSql;
+		private final String applySql;
+		private final String closeAllSql;
+
+		/**
+		 * @param name
+		 *            prefix of the <code>_metrics</code> and
+		 *            <code>_history</code> tables
+		 * @param columns
+		 *            key columns before the metric
+		 */
+		Level(final String name, final String columns) {
+			this.keys = columns.split(",").length + 1;
+			final String history = name + "_history";
+			final String added = name + "_added";
+			final String key = columns + ", metric";
+			final StringBuilder order = new StringBuilder();
+			final StringBuilder params = new StringBuilder();
+			for (int i = 1; i <= keys; i++) {
+				order.append(i).append(", ");
+				params.append("?,");
+			}
+			// equal keys come together, the current value first; NULL keys included
+			this.diffSql = "SELECT " + key + ", value, 0, 0 FROM " + name + "_metrics UNION ALL SELECT " + key
+					+ ", value, 1, rowid FROM " + history + " WHERE valid_to IS NULL ORDER BY " + order
+					+ (keys + 2);
+			// the changes are staged, so the scan never sees the rows it writes
+			this.stageSql = new String[] { "CREATE TEMP TABLE IF NOT EXISTS snapshot_closed( id integer)",
+					"DELETE FROM snapshot_closed",
+					"CREATE TEMP TABLE IF NOT EXISTS " + added + " AS SELECT " + key + ", value FROM " + history
+							+ " WHERE 0",
+					"DELETE FROM " + added };
+			this.addSql = "INSERT INTO " + added + " (" + key + ", value) VALUES (" + params + "?)";
+			this.closeSql = "INSERT INTO snapshot_closed (id) VALUES (?)";
+			this.applySql = "INSERT INTO " + history + " (" + key + ", valid_from, value) SELECT " + key
+					+ ", ?, value FROM " + added;
+			this.closeAllSql = "UPDATE " + history + " SET valid_to=? WHERE rowid IN (SELECT id FROM snapshot_closed)";
+		}
+
+		/**
+		 * @param counts
+		 *            receives the values added, changed and removed
+		 */
+		void record(final Connection conn, final SqliteWriter writer, final int run, final int[] counts)
+				throws SQLException {
+			try (Statement st = conn.createStatement()) {
+				for (String sql : stageSql) {
+					st.executeUpdate(sql);
+				}
+			}
+			final SqliteWriter.Batch add = writer.batch(addSql);
+			final SqliteWriter.Batch close = writer.batch(closeSql);
+			String[] group = null;
+			Double current = null;
+			Double previous = null;
+			long open = 0;
+			try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(diffSql)) {
+				while (true) {
+					final boolean more = rs.next();
+					final String[] key = more ? new String[keys] : null;
+					if (more) {
+						for (int i = 0; i < keys; i++) {
+							key[i] = rs.getString(i + 1);
+						}
+					}
+					if (group != null && !Arrays.equals(group, key)) {
+						if (previous == null) {
+							counts[0]++;
+						} else if (current == null) {
+							counts[2]++;
+						} else if (!previous.equals(current)) {
+							counts[1]++;
+						}
+						if (previous != null && !previous.equals(current)) {
+							close.stmt().setLong(1, open);
+							writer.add(close);
+						}
+						if (current != null && !current.equals(previous)) {
+							for (int i = 0; i < keys; i++) {
+								add.stmt().setString(i + 1, group[i]);
+							}
+							add.stmt().setDouble(keys + 1, current.doubleValue());
+							writer.add(add);
+						}
+						current = null;
+						previous = null;
+					}
+					if (!more) {
+						break;
+					}
+					group = key;
+					if (rs.getInt(keys + 2) == 0) {
+						current = Double.valueOf(rs.getDouble(keys + 1));
+					} else {
+						previous = Double.valueOf(rs.getDouble(keys + 1));
+						open = rs.getLong(keys + 3);
+					}
+				}
+			}
+			writer.flush();
+			try (PreparedStatement pstmt = conn.prepareStatement(closeAllSql)) {
+				pstmt.setInt(1, run);
+				pstmt.executeUpdate();
+			}
+			try (PreparedStatement pstmt = conn.prepareStatement(applySql)) {
+				pstmt.setInt(1, run);
+				pstmt.executeUpdate();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,463 @@
+package br.com.george.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Line counts read from the sources of <code>--sources</code>:
+ * {@link #CountLine} (physical lines), {@link #CountLineComment} and
+ * {@link #CountLineBlank}. The bytecode only knows the lines holding code,
+ * the rest needs the <code>.java</code> file.
+ * <p>
+ * The files are found from the package and the source file name of the
+ * recorded classes, under each source directory in turn. They are counted in
+ * parallel by a lexer working on the bytes, without decoding them: UTF-8
+ * can't hide a delimiter in a multibyte character. Large files are memory
+ * mapped, smaller ones are read into a buffer reused by each thread, as a
+ * mapping is only released by the garbage collector and costs more than the
+ * read for a few kilobytes.
+ * <p>
+ * The counts are file rows and package sums, and class rows for the class
+ * of a file that declares a single top level class.
+ */
+final class SourceLines {
+
+	static final String CountLine = "CountLine";
+	static final String CountLineComment = "CountLineComment";
+	static final String CountLineBlank = "CountLineBlank";
+	/** in the order of the counts of {@link Lexer#count(ByteBuffer)} */
+	private static final String[] METRICS = { CountLine, CountLineComment, CountLineBlank };
+
+	/** files from this size on are mapped */
+	private static final int MAPPED = 64 * 1024;
+
+	private final List<File> roots;
+	private final int threads;
+	private final RunStats stats;
+	/** package, file: top level classes of the file */
+	private final Map<String, Map<String, List<String>>> files = new TreeMap<String, Map<String, List<String>>>();
+
+	/**
+	 * @param roots
+	 *            source directories, searched in order
+	 * @param threads
+	 *            number of files counted at the same time
+	 */
+	SourceLines(final List<File> roots, final int threads, final RunStats stats) {
+		this.roots = roots;
+		this.threads = threads;
+		this.stats = stats;
+	}
+
+	/**
+	 * Registers a recorded class, called on the recording thread.
+	 */
+	void add(final String pkg, final String file, final String cls) {
+		if (pkg == null || file == null || !file.endsWith(".java")) {
+			return;
+		}
+		Map<String, List<String>> pkgFiles = files.get(pkg);
+		if (pkgFiles == null) {
+			pkgFiles = new TreeMap<String, List<String>>();
+			files.put(pkg, pkgFiles);
+		}
+		List<String> classes = pkgFiles.get(file);
+		if (classes == null) {
+			classes = new ArrayList<String>(1);
+			pkgFiles.put(file, classes);
+		}
+		if (cls.indexOf('$', cls.lastIndexOf('/') + 1) < 0) {
+			classes.add(cls);
+		}
+	}
+
+	/**
+	 * Counts the lines of the registered files, writes the class rows and
+	 * adds the file and package values to the rollup.
+	 *
+	 * @return number of rows written
+	 */
+	int write(final MetricsSink writer, final Rollup rollup) throws Exception {
+		final long wall = System.nanoTime();
+		final long cpu = RunStats.cpuTime();
+		final List<String[]> keys = new ArrayList<String[]>();
+		final List<File> sources = new ArrayList<File>();
+		for (Map.Entry<String, Map<String, List<String>>> pkg : files.entrySet()) {
+			for (String file : pkg.getValue().keySet()) {
+				final File source = find(pkg.getKey(), file);
+				if (source == null) {
+					stats.sourcesMissing.increment();
+					continue;
+				}
+				keys.add(new String[] { pkg.getKey(), file });
+				sources.add(source);
+			}
+		}
+		final int[][] counts = count(sources);
+		stats.sourceFiles.add(sources.size());
+		stats.since(RunStats.Phase.READ, wall, cpu);
+
+		int rows = 0;
+		for (int i = 0; i < keys.size(); i++) {
+			final String pkg = keys.get(i)[0];
+			final String file = keys.get(i)[1];
+			final int[] c = counts[i];
+			final List<String> classes = files.get(pkg).get(file);
+			for (int m = 0; m < METRICS.length; m++) {
+				rollup.addPackage(pkg, METRICS[m], c[m]);
+				rollup.addFile(pkg, file, METRICS[m], c[m]);
+				if (classes.size() == 1) {
+					writer.insertClass(pkg, file, classes.get(0), METRICS[m], c[m]);
+					rows++;
+				}
+			}
+		}
+		return rows;
+	}
+
+	private File find(final String pkg, final String file) {
+		final String path = pkg.isEmpty() ? file : pkg + '/' + file;
+		for (File root : roots) {
+			final File source = new File(root, path);
+			if (source.isFile()) {
+				return source;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return lines, comment lines and blank lines of each file
+	 */
+	private int[][] count(final List<File> sources) throws IOException {
+		final int[][] counts = new int[sources.size()][];
+		final int workers = Math.max(1, Math.min(threads, sources.size()));
+		final ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			final AtomicInteger next = new AtomicInteger();
+			final List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+			for (int i = 0; i < workers; i++) {
+				tasks.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						final Lexer lexer = new Lexer();
+						final ByteBuffer buffer = ByteBuffer.allocate(MAPPED);
+						for (int n; (n = next.getAndIncrement()) < sources.size();) {
+							final File source = sources.get(n);
+							try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+								final long size = channel.size();
+								if (size >= MAPPED) {
+									counts[n] = lexer.count(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+								} else {
+									buffer.clear();
+									while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+										// a file may grow while it is read, the rest is ignored
+									}
+									buffer.flip();
+									counts[n] = lexer.count(buffer);
+								}
+							} catch (IOException e) {
+								throw new IOException(String.format("Error while reading source file %s.", source), e);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> task : tasks) {
+				get(task);
+			}
+			return counts;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void get(final Future<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while counting source lines", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Counts the lines of one Java source at a time. A line is blank when it
+	 * only holds white space, even inside a block comment, a comment line
+	 * when it holds a comment, and a line may hold code and a comment.
+	 * <p>
+	 * Unicode escapes are translated first, as the compiler does:
+	 * <code>&#92;u002a&#92;u002f</code> ends a block comment and
+	 * <code>&#92;u000a</code> a line comment, but only a raw line terminator
+	 * ends a physical line.
+	 * Strings, character literals and text blocks are skipped so that the
+	 * comment delimiters they contain are not seen.
+	 */
+	static final class Lexer {
+
+		private static final int CODE = 0;
+		/** <code>/</code> in code, maybe the start of a comment */
+		private static final int SLASH = 1;
+		private static final int LINE_COMMENT = 2;
+		private static final int BLOCK_COMMENT = 3;
+		/** <code>*</code> in a block comment, maybe its end */
+		private static final int BLOCK_STAR = 4;
+		/** opening <code>"</code>, maybe of an empty string or a text block */
+		private static final int QUOTE = 5;
+		/** <code>""</code>, an empty string or the start of a text block */
+		private static final int QUOTES = 6;
+		private static final int STRING = 7;
+		private static final int STRING_ESCAPE = 8;
+		private static final int CHAR = 9;
+		private static final int CHAR_ESCAPE = 10;
+		private static final int TEXT_BLOCK = 11;
+		private static final int TEXT_BLOCK_ESCAPE = 12;
+
+		private int state;
+		/** consecutive <code>"</code> in a text block */
+		private int quotes;
+		private boolean code;
+		private boolean comment;
+		private int lines;
+		private int commentLines;
+		private int blankLines;
+
+		/**
+		 * @return lines, comment lines and blank lines of the source between
+		 *         the position and the limit of the buffer
+		 */
+		int[] count(final ByteBuffer buf) {
+			state = CODE;
+			quotes = 0;
+			code = false;
+			comment = false;
+			lines = 0;
+			commentLines = 0;
+			blankLines = 0;
+			final int end = buf.limit();
+			int pos = buf.position();
+			if (end - pos >= 3 && buf.get(pos) == (byte) 0xEF && buf.get(pos + 1) == (byte) 0xBB
+					&& buf.get(pos + 2) == (byte) 0xBF) {
+				pos += 3;
+			}
+			// a line was started and not ended yet
+			boolean open = false;
+			// consecutive raw backslashes, an even count before a backslash allows an escape
+			int backslashes = 0;
+			while (pos < end) {
+				int c = buf.get(pos++) & 0xFF;
+				if (c == '\\') {
+					final int escape = (backslashes & 1) == 0 ? unicodeEscape(buf, pos, end) : -1;
+					if (escape >= 0) {
+						// the escape is one character whatever its length
+						while (buf.get(pos) == 'u') {
+							pos++;
+						}
+						pos += 4;
+						backslashes = 0;
+						open = true;
+						step(escape);
+						continue;
+					}
+					backslashes++;
+				} else {
+					backslashes = 0;
+				}
+				if (c == '\n' || c == '\r') {
+					step('\n');
+					endLine();
+					open = false;
+					if (c == '\r' && pos < end && buf.get(pos) == '\n') {
+						pos++;
+					}
+				} else {
+					open = true;
+					step(c);
+				}
+			}
+			if (open) {
+				// as if the last line was terminated, a pending slash is code
+				step('\n');
+				endLine();
+			}
+			return new int[] { lines, commentLines, blankLines };
+		}
+
+		/**
+		 * @return the character of the unicode escape whose <code>u</code>
+		 *         is at the given position, -1 if there is none
+		 */
+		private static int unicodeEscape(final ByteBuffer buf, int pos, final int end) {
+			if (pos >= end || buf.get(pos) != 'u') {
+				return -1;
+			}
+			while (pos < end && buf.get(pos) == 'u') {
+				pos++;
+			}
+			if (end - pos < 4) {
+				return -1;
+			}
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				final int digit = Character.digit(buf.get(pos + i), 16);
+				if (digit < 0) {
+					return -1;
+				}
+				value = value << 4 | digit;
+			}
+			return value;
+		}
+
+		private void endLine() {
+			lines++;
+			if (comment) {
+				commentLines++;
+			} else if (!code) {
+				blankLines++;
+			}
+			// the lines of a text block are part of its literal
+			code = state == TEXT_BLOCK || state == TEXT_BLOCK_ESCAPE;
+			comment = false;
+		}
+
+		private static boolean space(final int c) {
+			return c == ' ' || c == '\t' || c == '\f' || c == '\n' || c == '\r';
+		}
+
+		/**
+		 * Moves the lexer over one character, line terminators being given
+		 * as <code>\n</code>.
+		 */
+		private void step(final int c) {
+			// the states waiting for a second character fall back to another state
+			switch (state) {
+			case SLASH:
+				if (c == '/') {
+					state = LINE_COMMENT;
+					comment = true;
+					return;
+				}
+				if (c == '*') {
+					state = BLOCK_COMMENT;
+					comment = true;
+					return;
+				}
+				// a division, c is code again
+				code = true;
+				state = CODE;
+				break;
+			case QUOTE:
+				if (c == '"') {
+					state = QUOTES;
+					return;
+				}
+				state = STRING;
+				break;
+			case QUOTES:
+				if (c == '"') {
+					state = TEXT_BLOCK;
+					quotes = 0;
+					return;
+				}
+				// an empty string
+				state = CODE;
+				break;
+			case BLOCK_STAR:
+				if (c == '/') {
+					state = CODE;
+					return;
+				}
+				if (c == '*') {
+					return;
+				}
+				state = BLOCK_COMMENT;
+				break;
+			default:
+			}
+			switch (state) {
+			case CODE:
+				if (c == '/') {
+					state = SLASH;
+				} else if (!space(c)) {
+					code = true;
+					if (c == '"') {
+						state = QUOTE;
+					} else if (c == '\'') {
+						state = CHAR;
+					}
+				}
+				break;
+			case LINE_COMMENT:
+				if (c == '\n') {
+					state = CODE;
+				}
+				break;
+			case BLOCK_COMMENT:
+				if (c == '*') {
+					state = BLOCK_STAR;
+					comment = true;
+				} else if (!space(c)) {
+					comment = true;
+				}
+				break;
+			case STRING:
+				if (c == '\\') {
+					state = STRING_ESCAPE;
+				} else if (c == '"' || c == '\n') {
+					state = CODE;
+				}
+				break;
+			case CHAR:
+				if (c == '\\') {
+					state = CHAR_ESCAPE;
+				} else if (c == '\'' || c == '\n') {
+					state = CODE;
+				}
+				break;
+			case STRING_ESCAPE:
+				state = c == '\n' ? CODE : STRING;
+				break;
+			case CHAR_ESCAPE:
+				state = c == '\n' ? CODE : CHAR;
+				break;
+			case TEXT_BLOCK:
+				if (c == '\\') {
+					state = TEXT_BLOCK_ESCAPE;
+					quotes = 0;
+				} else if (c != '"') {
+					quotes = 0;
+				} else if (++quotes == 3) {
+					state = CODE;
+				}
+				break;
+			default:
+				// TEXT_BLOCK_ESCAPE
+				state = TEXT_BLOCK;
+			}
+		}
+
+	}
+
+}
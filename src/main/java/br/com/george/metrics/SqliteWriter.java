@@ -0,0 +1,345 @@
+package br.com.george.metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes metric rows to the SQLite output. Every statement is prepared once
+ * and rows are sent with JDBC batches inside a single transaction (or one
+ * transaction every <code>commitEvery</code> rows). Pending deletes, used by
+ * <code>--incremental</code>, are always executed before pending inserts.
+ */
+class SqliteWriter implements MetricsSink {
+
+	private static String classSql = "INSERT INTO class_metrics (package,file,class,metric,value) VALUES (?,?,?,?,?) ";
+	private static String methodSql = "INSERT INTO method_metrics (package,file,class,method,metric,value) VALUES (?,?,?,?,?,?) ";
+	private static String pkgSql = "INSERT INTO package_metrics (package,metric,value) VALUES (?,?,?) ";
+	private static String fileSql = "INSERT INTO file_metrics (package,file,metric,value) VALUES (?,?,?,?) ";
+	private static String locationSql = "INSERT INTO class_locations (package,file,class,location) VALUES (?,?,?,?) ";
+	private static String classFileSql = "INSERT OR REPLACE INTO class_files (path,size,mtime,hash,package,file,class) VALUES (?,?,?,?,?,?,?) ";
+	private static String distributionSql = "INSERT INTO metric_distributions (level,metric,count,min,max,mean,p50,p90,p99) VALUES (?,?,?,?,?,?,?,?,?) ";
+	private static String binSql = "INSERT INTO metric_distribution_bins (level,metric,lower,upper,count) VALUES (?,?,?,?,?) ";
+	private static String sketchSql = "INSERT INTO metric_sketches (package,level,metric,sketch) VALUES (?,?,?,?) ";
+	private static String classFileDeleteSql = "DELETE FROM class_files WHERE path=?";
+	private static String classDeleteSql = "DELETE FROM class_metrics WHERE package=? AND class=?";
+	private static String methodDeleteSql = "DELETE FROM method_metrics WHERE package=? AND class=?";
+	private static String locationDeleteSql = "DELETE FROM class_locations WHERE package=? AND class=?";
+	private static String pkgDeleteSql = "DELETE FROM package_metrics WHERE package=?";
+	private static String fileDeleteSql = "DELETE FROM file_metrics WHERE package=?";
+	private static String sketchDeleteSql = "DELETE FROM metric_sketches WHERE package=?";
+
+	private final Connection conn;
+	private final int batchSize;
+	private final int commitEvery;
+	private final RunStats stats;
+
+	/** in flush order: deletes run first so that a row can be deleted and inserted again */
+	private final List<Batch> batches = new ArrayList<Batch>();
+
+	private final Batch classDelete = new Batch(classDeleteSql);
+	private final Batch methodDelete = new Batch(methodDeleteSql);
+	private final Batch locationDelete = new Batch(locationDeleteSql);
+	private final Batch pkgDelete = new Batch(pkgDeleteSql);
+	private final Batch fileDelete = new Batch(fileDeleteSql);
+	private final Batch sketchDelete = new Batch(sketchDeleteSql);
+	private final Batch classFileDelete = new Batch(classFileDeleteSql);
+	private final Batch pkgInsert = new Batch(pkgSql);
+	private final Batch fileInsert = new Batch(fileSql);
+	private final Batch classInsert = new Batch(classSql);
+	private final Batch methodInsert = new Batch(methodSql);
+	private final Batch locationInsert = new Batch(locationSql);
+	private final Batch classFileInsert = new Batch(classFileSql);
+	private final Batch distributionInsert = new Batch(distributionSql);
+	private final Batch binInsert = new Batch(binSql);
+	private final Batch sketchInsert = new Batch(sketchSql);
+
+	private int pending;
+	private int uncommitted;
+
+	/**
+	 * Creates a writer on the given connection and starts its transaction.
+	 * Statements are prepared on first use.
+	 *
+	 * @param conn
+	 *            open connection to a database created with script.sql
+	 * @param batchSize
+	 *            number of pending rows that triggers an executeBatch
+	 * @param commitEvery
+	 *            number of rows per transaction, 0 for a single transaction
+	 * @throws SQLException
+	 *             if the transaction can't be started
+	 */
+	SqliteWriter(final Connection conn, final int batchSize, final int commitEvery) throws SQLException {
+		this(conn, batchSize, commitEvery, new RunStats());
+	}
+
+	/**
+	 * Creates a writer reporting the time of every batch to the given
+	 * statistics.
+	 */
+	SqliteWriter(final Connection conn, final int batchSize, final int commitEvery, final RunStats stats)
+			throws SQLException {
+		this.conn = conn;
+		this.batchSize = batchSize;
+		this.commitEvery = commitEvery;
+		this.stats = stats;
+		conn.setAutoCommit(false);
+	}
+
+	/**
+	 * Applies the SQLite pragmas given on the command line. Must run before
+	 * the writer opens its transaction.
+	 */
+	static void configure(final Connection conn, final Options options) throws SQLException {
+		try (Statement st = conn.createStatement()) {
+			if (options.journalMode != null) {
+				st.execute("PRAGMA journal_mode=" + options.journalMode);
+			}
+			if (options.synchronous != null) {
+				st.execute("PRAGMA synchronous=" + options.synchronous);
+			}
+			if (options.cacheSize != null) {
+				st.execute("PRAGMA cache_size=" + options.cacheSize);
+			}
+		}
+	}
+
+	@Override
+	public void insertPackage(final String pkg, final String metric, final double value) throws SQLException {
+		final PreparedStatement pstmt = pkgInsert.stmt();
+		pstmt.setString(1, pkg);
+		pstmt.setString(2, metric);
+		pstmt.setDouble(3, value);
+		add(pkgInsert);
+	}
+
+	@Override
+	public void insertFile(final String pkg, final String file, final String metric, final double value)
+			throws SQLException {
+		final PreparedStatement pstmt = fileInsert.stmt();
+		pstmt.setString(1, pkg);
+		pstmt.setString(2, file);
+		pstmt.setString(3, metric);
+		pstmt.setDouble(4, value);
+		add(fileInsert);
+	}
+
+	@Override
+	public void insertClass(final String pkg, final String file, final String cls, final String metric, final double value)
+			throws SQLException {
+		final PreparedStatement pstmt = classInsert.stmt();
+		pstmt.setString(1, pkg);
+		pstmt.setString(2, file);
+		pstmt.setString(3, cls);
+		pstmt.setString(4, metric);
+		pstmt.setDouble(5, value);
+		add(classInsert);
+	}
+
+	@Override
+	public void insertMethod(final String pkg, final String file, final String cls, final String method,
+			final String metric, final double value) throws SQLException {
+		final PreparedStatement pstmt = methodInsert.stmt();
+		pstmt.setString(1, pkg);
+		pstmt.setString(2, file);
+		pstmt.setString(3, cls);
+		pstmt.setString(4, method);
+		pstmt.setString(5, metric);
+		pstmt.setDouble(6, value);
+		add(methodInsert);
+	}
+
+	@Override
+	public void insertLocation(final String pkg, final String file, final String cls, final String location)
+			throws SQLException {
+		final PreparedStatement pstmt = locationInsert.stmt();
+		pstmt.setString(1, pkg);
+		pstmt.setString(2, file);
+		pstmt.setString(3, cls);
+		pstmt.setString(4, location);
+		add(locationInsert);
+	}
+
+	void deleteClass(final String pkg, final String cls) throws SQLException {
+		for (Batch batch : new Batch[] { classDelete, methodDelete, locationDelete }) {
+			batch.stmt().setString(1, pkg);
+			batch.stmt().setString(2, cls);
+			add(batch);
+		}
+	}
+
+	void deletePackage(final String pkg) throws SQLException {
+		for (Batch batch : new Batch[] { pkgDelete, fileDelete, sketchDelete }) {
+			batch.stmt().setString(1, pkg);
+			add(batch);
+		}
+	}
+
+	void insertDistribution(final String level, final String metric, final MetricDistribution d)
+			throws SQLException {
+		final PreparedStatement pstmt = distributionInsert.stmt();
+		pstmt.setString(1, level);
+		pstmt.setString(2, metric);
+		pstmt.setLong(3, d.count);
+		pstmt.setDouble(4, d.min);
+		pstmt.setDouble(5, d.max);
+		pstmt.setDouble(6, d.mean());
+		pstmt.setDouble(7, d.quantile(0.5));
+		pstmt.setDouble(8, d.quantile(0.9));
+		pstmt.setDouble(9, d.quantile(0.99));
+		add(distributionInsert);
+	}
+
+	void insertDistributionBin(final String level, final String metric, final Double lower, final Double upper,
+			final long count) throws SQLException {
+		final PreparedStatement pstmt = binInsert.stmt();
+		pstmt.setString(1, level);
+		pstmt.setString(2, metric);
+		pstmt.setObject(3, lower);
+		pstmt.setObject(4, upper);
+		pstmt.setLong(5, count);
+		add(binInsert);
+	}
+
+	void insertSketch(final String pkg, final String level, final String metric, final byte[] sketch)
+			throws SQLException {
+		final PreparedStatement pstmt = sketchInsert.stmt();
+		pstmt.setString(1, pkg);
+		pstmt.setString(2, level);
+		pstmt.setString(3, metric);
+		pstmt.setBytes(4, sketch);
+		add(sketchInsert);
+	}
+
+	void insertClassFile(final String path, final long size, final long mtime, final String hash, final String pkg,
+			final String file, final String cls) throws SQLException {
+		final PreparedStatement pstmt = classFileInsert.stmt();
+		pstmt.setString(1, path);
+		pstmt.setLong(2, size);
+		pstmt.setLong(3, mtime);
+		pstmt.setString(4, hash);
+		pstmt.setString(5, pkg);
+		pstmt.setString(6, file);
+		pstmt.setString(7, cls);
+		add(classFileInsert);
+	}
+
+	void deleteClassFile(final String path) throws SQLException {
+		classFileDelete.stmt().setString(1, path);
+		add(classFileDelete);
+	}
+
+	/**
+	 * Creates a batch for a statement of another component, flushed after
+	 * the batches of the writer.
+	 */
+	Batch batch(final String sql) {
+		return new Batch(sql);
+	}
+
+	void add(final Batch batch) throws SQLException {
+		batch.stmt().addBatch();
+		batch.size++;
+		if (++pending >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Executes all pending batches and commits when the transaction reached
+	 * <code>commitEvery</code> rows.
+	 */
+	void flush() throws SQLException {
+		if (pending == 0) {
+			return;
+		}
+		final long wall = System.nanoTime();
+		final long cpu = RunStats.cpuTime();
+		for (Batch batch : batches) {
+			if (batch.size > 0) {
+				batch.stmt.executeBatch();
+				batch.size = 0;
+			}
+		}
+		uncommitted += pending;
+		pending = 0;
+		if (commitEvery > 0 && uncommitted >= commitEvery) {
+			conn.commit();
+			uncommitted = 0;
+		}
+		stats.since(RunStats.Phase.WRITE, wall, cpu);
+		stats.batchWrite.record(System.nanoTime() - wall);
+	}
+
+	/**
+	 * Flushes the remaining rows, commits and releases the statements. The
+	 * connection itself stays open.
+	 */
+	@Override
+	public void close() throws SQLException {
+		try {
+			flush();
+			final long wall = System.nanoTime();
+			final long cpu = RunStats.cpuTime();
+			conn.commit();
+			stats.since(RunStats.Phase.WRITE, wall, cpu);
+			conn.setAutoCommit(true);
+		} finally {
+			for (Batch batch : batches) {
+				batch.close();
+			}
+		}
+	}
+
+	/**
+	 * Discards every row of the transaction and releases the statements,
+	 * instead of {@link #close()} when the update failed.
+	 */
+	void rollback() throws SQLException {
+		try {
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} finally {
+			for (Batch batch : batches) {
+				batch.close();
+			}
+		}
+	}
+
+	/**
+	 * A statement with its pending rows. Batches are flushed in the order
+	 * they were created.
+	 */
+	final class Batch {
+
+		private final String sql;
+		private PreparedStatement stmt;
+		int size;
+
+		Batch(final String sql) {
+			this.sql = sql;
+			batches.add(this);
+		}
+
+		PreparedStatement stmt() throws SQLException {
+			if (stmt == null) {
+				stmt = conn.prepareStatement(sql);
+			}
+			return stmt;
+		}
+
+		void close() throws SQLException {
+			if (stmt != null) {
+				stmt.close();
+			}
+		}
+
+	}
+
+}
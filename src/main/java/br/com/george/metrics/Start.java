@@ -11,18 +11,17 @@
  *******************************************************************************/
 package br.com.george.metrics;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.jacoco.core.analysis.*;
 import org.jacoco.core.data.ExecutionDataStore;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Example usage of the JaCoCo core API. In this tutorial a single target class
@@ -31,47 +30,8 @@ import java.util.regex.Pattern;
  */
 public final class Start {
 
-	private static String classSql = "INSERT INTO class_metrics (package,file,class,metric,value) VALUES (?,?,?,?,?) ";
-	private static String classMaxUpdateSql = "UPDATE class_metrics SET value=max(value,?) WHERE package=? and file=? AND class=? AND metric=?";
-	private static String methodSql = "INSERT INTO method_metrics (package,file,class,method,metric,value) VALUES (?,?,?,?,?,?) ";
-	private static String pkgCreateSql = "INSERT INTO package_metrics (package,metric,value) VALUES (?,?,0) ";
-	private static String fileCreateSql = "INSERT INTO file_metrics (package,file,metric,value) VALUES (?,?,?,0) ";
-	private static String pkgUpdateSql = "UPDATE package_metrics SET value=value+? WHERE package=? AND metric=?";
-	private static String pkgMaxUpdateSql = "UPDATE file_metrics SET value=max(value,?) WHERE package=? and  metric=?";
-	private static String fileUpdateSql = "UPDATE file_metrics SET value=value+? WHERE package=? and file=? AND metric=?";
-	private static String fileMaxUpdateSql = "UPDATE file_metrics SET value=max(value,?) WHERE package=? and file=? AND metric=?";
-
-	private static String CountParams = "CountParams";
-	private static String MaxCyclomatic= "MaxCyclomatic";
-	private static String CyclomaticModified = "CyclomaticModified";
-	private static String MaxCyclomaticModified = "MaxCyclomaticModified";
-	private static String Cyclomatic = "Cyclomatic";
-	private static String CountLineCode = "CountLineCode";
-	private static String CountDeclMethod = "CountDeclMethod";
-	private static String CountDeclClass= "CountDeclClass";
-	private static String CountDeclFunction= "CountDeclFunction";
-
-	private String[] metrics = new String [] {CyclomaticModified,Cyclomatic,CountLineCode ,MaxCyclomatic ,MaxCyclomaticModified};
-
-	private static Pattern allParamsPattern = Pattern.compile("(\\(.*?\\))");
-	private static Pattern paramsPattern = Pattern.compile("(\\[?)(C|Z|S|I|J|F|D|(:?L[^;]+;))");
-
-
-	int getMethodParamCount(String methodRefType) {
-		Matcher m = allParamsPattern.matcher(methodRefType);
-		if (!m.find()) {
-			throw new IllegalArgumentException("Method signature does not contain parameters");
-		}
-		String paramsDescriptor = m.group(1);
-		Matcher mParam = paramsPattern.matcher(paramsDescriptor);
-
-		int count = 0;
-		while (mParam.find()) {
-			count++;
-		}
-		return count;
-	}
-
+	/** exit status of a run whose output could not be written */
+	static final int FAILED = 2;
 
 	private final PrintStream out;
 
@@ -92,15 +52,60 @@ public final class Start {
 	 *             in case of errors
 	 */
 	public void execute(String path, String sqlfile) throws Exception {
-		final ExecutionDataStore executionData = new ExecutionDataStore();
-		final CoverageBuilder coverageBuilder = new CoverageBuilder();
-		final Analyzer analyzer = new Analyzer(executionData, coverageBuilder);
+		execute(path, sqlfile, Options.parse(new String[0]));
+	}
 
+	/**
+	 * Run this example with the given output options.
+	 *
+	 * @return exit status, 1 when a rule of <code>--fail-on</code> was
+	 *         violated, {@link #FAILED} when the database could not be
+	 *         written
+	 * @throws Exception
+	 *             in case of errors
+	 */
+	int execute(String path, String sqlfile, Options options) throws Exception {
+		final ExecutionDataStore executionData = loadExecutionData(options);
+		final boolean coverage = !options.exec.isEmpty();
+		final ClassFilter filter = options.filter();
+		final ClassFileWalker walker = new ClassFileWalker(options.walkThreads, !options.skipSymlinks, filter,
+				this.out);
+		final RunStats stats = new RunStats(this.out);
+		final MetricsReport metrics = options.report() ? new MetricsReport(options.top, options.rules) : null;
+
+		if (!"sqlite".equals(options.format)) {
+			final ClassCopies copies = new ClassCopies(options.countCopies);
+			final ParallelAnalyzer analyzer = new ParallelAnalyzer(executionData, options.threads, stats, null, coverage,
+					options.asm, copies);
+			try (ClassInputs inputs = new ClassInputs(ClassInputs.roots(path), walker, filter);
+					MetricsSink sink = "columnar".equals(options.format) ? new ColumnarSink(new File(sqlfile), stats)
+							: new TextSink(new File(sqlfile), "ndjson".equals(options.format), stats)) {
+				final MetricsRecorder recorder = new MetricsRecorder(observe(metrics, sink), stats,
+						sources(options, stats));
+				record(analyzer, inputs, recorder, copies, options, stats);
+				recorder.finish();
+			}
+			return report(stats, options, metrics);
+		}
 
-		new File(sqlfile).delete();
 		Class.forName("org.sqlite.JDBC");
+		if (options.shardCount > 0) {
+			return partial(path, sqlfile, options, executionData, walker, filter, stats);
+		}
 
+		final boolean update = options.incremental && IncrementalIndex.exists(sqlfile);
+		// the history survives full runs, only the latest state is rebuilt
+		final boolean history = options.snapshot != null && Snapshots.exists(sqlfile);
+		if (!update && !history) {
+			new File(sqlfile).delete();
+		}
+
+		if (options.watch && !new File(path).isDirectory()) {
+			throw new IllegalArgumentException("--watch needs a directory of class files: " + path);
+		}
 		Connection conn = null;
+		ClassWatcher watcher = null;
+		int status = 0;
 		try {
 			String url = "jdbc:sqlite:"+sqlfile ;
 			conn = DriverManager.getConnection(url);
@@ -108,236 +113,90 @@ public final class Start {
 
 
 			System.out.println("Connection to SQLite has been established.");
-			try (InputStream is = getClass().getClassLoader().getResourceAsStream("script.sql") ) {
-				List<String> lines = IOUtils.readLines(is, "UTF-8");
-				for (String line : lines) {
-					st.execute(line);
-				}
+			SqliteWriter.configure(conn, options);
+			if (!update && history) {
+				Snapshots.clear(conn);
+			} else if (!update) {
+				runScript(st, options.normalized ? "script-normalized.sql"
+						: options.shards > 1 ? "script-sharded.sql" : "script.sql");
 			}
-			String[] extensions = { "class" };
-			boolean recursive = true;
-
-			Collection<File> files = FileUtils.listFiles(new File(path), extensions, recursive);
-
-			for (Iterator iterator = files.iterator(); iterator.hasNext();) {
-				File file = (File) iterator.next();
-				this.out.println("File = " + file.getAbsolutePath());
-				try (InputStream  original = FileUtils.openInputStream(file)) {
-					analyzer.analyzeClass(IOUtils.toByteArray(original), file.getAbsolutePath());
-				}
+			if (options.snapshot != null && !history) {
+				runScript(st, "script-history.sql");
 			}
-
-			for (final IClassCoverage cc : coverageBuilder.getClasses()) {
-
-				for (String met : metrics ) {
-					try (PreparedStatement pstmt = conn.prepareStatement(pkgCreateSql)) {
-						pstmt.setString(1, cc.getPackageName());
-						pstmt.setString(2, met);
-						pstmt.executeUpdate();
-					}
-					catch (Exception e ) {
-					}
-					try (PreparedStatement pstmt = conn.prepareStatement(fileCreateSql)) {
-						pstmt.setString(1, cc.getPackageName());
-						pstmt.setString(2, cc.getSourceFileName());
-						pstmt.setString(3, met);
-						pstmt.executeUpdate();
-					}
-					catch (Exception e ) {
+			if (options.incremental && !update) {
+				st.execute(IncrementalIndex.TABLE_SQL);
+				st.execute(IncrementalIndex.SKETCH_TABLE_SQL);
+			}
+			if (options.watch) {
+				// registered first, so changes made during the full run are seen
+				watcher = new ClassWatcher(new File(path).toPath());
+			}
+			final IncrementalIndex index = options.incremental ? IncrementalIndex.load(conn) : null;
+			// an update only reads the changed class files, it can't tell copies apart
+			final ClassCopies copies = index == null ? new ClassCopies(options.countCopies) : null;
+			final ParallelAnalyzer analyzer = new ParallelAnalyzer(executionData, options.threads, stats, index, coverage,
+					options.asm, copies);
+			try (ClassInputs inputs = new ClassInputs(ClassInputs.roots(path), walker, filter);
+					SqliteWriter writer = options.normalized
+							? new NormalizedWriter(conn, options.batchSize, options.commitEvery, stats)
+							: new SqliteWriter(conn, options.batchSize, options.commitEvery, stats)) {
+				final int run = options.snapshot != null ? Snapshots.begin(conn, options.snapshot) : 0;
+				if (index != null) {
+					final ClassCollector collector = new ClassCollector(stats);
+					analyzer.analyze(inputs, collector);
+					index.apply(conn, writer, collector.getClasses(), stats, this.out);
+				} else {
+					final Distributions distributions = new Distributions();
+					try (ShardedWriter shards = options.shards > 1
+							? new ShardedWriter(sqlfile, options.shards, options.batchSize, stats) : null) {
+						final MetricsSink sink = shards != null ? shards : writer;
+						final MetricsRecorder recorder = new MetricsRecorder(
+								observe(metrics, distributions.observe(sink)), stats, sources(options, stats));
+						record(analyzer, inputs, recorder, copies, options, stats);
+						recorder.finish();
 					}
+					distributions.write(writer);
 				}
-				try (PreparedStatement pstmt = conn.prepareStatement(fileCreateSql)) {
-					pstmt.setString(1, cc.getPackageName());
-					pstmt.setString(2, cc.getSourceFileName());
-					pstmt.setString(3, CountDeclClass);
-					pstmt.executeUpdate();
-				}
-				catch (Exception e ) {
-				}
-				try (PreparedStatement pstmt = conn.prepareStatement(fileCreateSql)) {
-					pstmt.setString(1, cc.getPackageName());
-					pstmt.setString(2, cc.getSourceFileName());
-					pstmt.setString(3, CountDeclMethod);
-					pstmt.executeUpdate();
-				}
-				catch (Exception e ) {
-				}
-				try (PreparedStatement pstmt = conn.prepareStatement(fileCreateSql)) {
-					pstmt.setString(1, cc.getPackageName());
-					pstmt.setString(2, cc.getSourceFileName());
-					pstmt.setString(3, CountDeclFunction);
-					pstmt.executeUpdate();
-				}
-				catch (Exception e ) {
-				}
-
-				try (PreparedStatement pstmt = conn.prepareStatement(pkgUpdateSql)) {
-					pstmt.setDouble(1, cc.getComplexityCounter().getTotalCount());
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, CyclomaticModified);
-					pstmt.executeUpdate();
-				}
-				try (PreparedStatement pstmt = conn.prepareStatement(pkgUpdateSql)) {
-					pstmt.setDouble(1, cc.getComplexityCounter().getTotalCount());
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, Cyclomatic);
-					pstmt.executeUpdate();
+				if (options.snapshot != null) {
+					Snapshots.record(conn, writer, run, options.snapshot, this.out);
 				}
-				try (PreparedStatement pstmt = conn.prepareStatement(pkgUpdateSql)) {
-					pstmt.setDouble(1, cc.getLineCounter().getTotalCount());
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, CountLineCode);
-					pstmt.executeUpdate();
-				}
-				try (PreparedStatement pstmt = conn.prepareStatement(pkgMaxUpdateSql)) {
-					pstmt.setDouble(1, cc.getComplexityCounter().getTotalCount());
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, MaxCyclomatic);
-					pstmt.executeUpdate();
-				}
-				try (PreparedStatement pstmt = conn.prepareStatement(pkgMaxUpdateSql)) {
-					pstmt.setDouble(1, cc.getComplexityCounter().getTotalCount());
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, MaxCyclomaticModified);
-					pstmt.executeUpdate();
-				}
-
-
-				try (PreparedStatement pstmt = conn.prepareStatement(fileUpdateSql)) {
-					pstmt.setDouble(1, cc.getComplexityCounter().getTotalCount());
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, cc.getSourceFileName());
-					pstmt.setString(4, CyclomaticModified);
-					pstmt.executeUpdate();
-				}
-				try (PreparedStatement pstmt = conn.prepareStatement(fileUpdateSql)) {
-					pstmt.setDouble(1, cc.getComplexityCounter().getTotalCount());
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, cc.getSourceFileName());
-					pstmt.setString(4, Cyclomatic);
-					pstmt.executeUpdate();
-				}
-				try (PreparedStatement pstmt = conn.prepareStatement(fileUpdateSql)) {
-					pstmt.setDouble(1, cc.getLineCounter().getTotalCount());
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, cc.getSourceFileName());
-					pstmt.setString(4, CountLineCode);
-					pstmt.executeUpdate();
-				}
-				try (PreparedStatement pstmt = conn.prepareStatement(fileUpdateSql)) {
-					pstmt.setDouble(1, 1.0);
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, cc.getSourceFileName());
-					pstmt.setString(4, CountDeclClass);
-					pstmt.executeUpdate();
-				}
-				try (PreparedStatement pstmt = conn.prepareStatement(fileMaxUpdateSql)) {
-					pstmt.setDouble(1, cc.getComplexityCounter().getTotalCount());
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, cc.getSourceFileName());
-					pstmt.setString(4, MaxCyclomatic);
-					pstmt.executeUpdate();
-				}
-				try (PreparedStatement pstmt = conn.prepareStatement(fileMaxUpdateSql)) {
-					pstmt.setDouble(1, cc.getComplexityCounter().getTotalCount());
-					pstmt.setString(2, cc.getPackageName());
-					pstmt.setString(3, cc.getSourceFileName());
-					pstmt.setString(4, MaxCyclomaticModified);
-					pstmt.executeUpdate();
-				}
- 				try (PreparedStatement pstmt = conn.prepareStatement(classSql)) {
-					pstmt.setString(1, cc.getPackageName());
-					pstmt.setString(2, cc.getSourceFileName());
-					pstmt.setString(3, cc.getName());
-					pstmt.setString(4, CyclomaticModified);
-					pstmt.setDouble(5, cc.getComplexityCounter().getTotalCount());
-					pstmt.executeUpdate();
-				}
- 				try (PreparedStatement pstmt = conn.prepareStatement(classSql)) {
-					pstmt.setString(1, cc.getPackageName());
-					pstmt.setString(2, cc.getSourceFileName());
-					pstmt.setString(3, cc.getName());
-					pstmt.setString(4, Cyclomatic);
-					pstmt.setDouble(5, cc.getComplexityCounter().getTotalCount());
-					pstmt.executeUpdate();
-				}
- 				try (PreparedStatement pstmt = conn.prepareStatement(classSql)) {
-					pstmt.setString(1, cc.getPackageName());
-					pstmt.setString(2, cc.getSourceFileName());
-					pstmt.setString(3, cc.getName());
-					pstmt.setString(4, CountLineCode);
-					pstmt.setDouble(5, cc.getLineCounter().getTotalCount());
-					pstmt.executeUpdate();
-				}
- 				try (PreparedStatement pstmt = conn.prepareStatement(classSql)) {
-					pstmt.setString(1, cc.getPackageName());
-					pstmt.setString(2, cc.getSourceFileName());
-					pstmt.setString(3, cc.getName());
-					pstmt.setString(4, CountDeclMethod);
-					pstmt.setDouble(5, cc.getMethodCounter().getTotalCount());
-					pstmt.executeUpdate();
-				}
-
-				for (IMethodCoverage mc : cc.getMethods()) {
-					try (PreparedStatement pstmt = conn.prepareStatement(fileUpdateSql)) {
-						pstmt.setDouble(1, 1);
-						pstmt.setString(2, cc.getPackageName());
-						pstmt.setString(3, cc.getSourceFileName());
-						pstmt.setString(4, CountDeclFunction);
-						pstmt.executeUpdate();
-					}
-
-					try (PreparedStatement pstmt = conn.prepareStatement(methodSql)) {
-						pstmt.setString(1, cc.getPackageName());
-						pstmt.setString(2, cc.getSourceFileName());
-						pstmt.setString(3, cc.getName());
-						pstmt.setString(4, mc.getName()+" "+mc.getDesc());
-						pstmt.setString(5, CyclomaticModified);
-						pstmt.setDouble(6, mc.getComplexityCounter().getTotalCount());
-						pstmt.executeUpdate();
-					}
-					try (PreparedStatement pstmt = conn.prepareStatement(methodSql)) {
-						pstmt.setString(1, cc.getPackageName());
-						pstmt.setString(2, cc.getSourceFileName());
-						pstmt.setString(3, cc.getName());
-						pstmt.setString(4, mc.getName()+" "+mc.getDesc());
-						pstmt.setString(5, Cyclomatic);
-						pstmt.setDouble(6, mc.getComplexityCounter().getTotalCount());
-						pstmt.executeUpdate();
-					}
-					try (PreparedStatement pstmt = conn.prepareStatement(methodSql)) {
-						pstmt.setString(1, cc.getPackageName());
-						pstmt.setString(2, cc.getSourceFileName());
-						pstmt.setString(3, cc.getName());
-						pstmt.setString(4, mc.getName()+" "+mc.getDesc());
-						pstmt.setString(5, CountLineCode);
-						pstmt.setDouble(6, mc.getLineCounter().getTotalCount());
-						pstmt.executeUpdate();
-					}
-					try (PreparedStatement pstmt = conn.prepareStatement(methodSql)) {
-						pstmt.setString(1, cc.getPackageName());
-						pstmt.setString(2, cc.getSourceFileName());
-						pstmt.setString(3, cc.getName());
-						pstmt.setString(4, mc.getName()+" "+mc.getDesc());
-						pstmt.setString(5, CountParams);
-						pstmt.setDouble(6, getMethodParamCount(mc.getDesc()));
-						pstmt.executeUpdate();
-					}
-				}
-
+			}
+			if (options.normalized) {
+				// built after the load, cheaper than maintaining them row by row
+				final long wall = System.nanoTime();
+				final long cpu = RunStats.cpuTime();
+				runScript(st, "indexes-normalized.sql");
+				stats.since(RunStats.Phase.WRITE, wall, cpu);
+			}
+			if (options.shards > 1) {
+				final long wall = System.nanoTime();
+				final long cpu = RunStats.cpuTime();
+				ShardedWriter.merge(conn, sqlfile, options.shards);
+				runScript(st, "indexes-sharded.sql");
+				stats.since(RunStats.Phase.WRITE, wall, cpu);
+			}
+			status = report(stats, options, metrics);
+			if (watcher != null) {
+				watch(conn, watcher, new File(path), index.next(), executionData, options);
 			}
 
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
+			status = FAILED;
 		} finally {
+			if (watcher != null) {
+				watcher.close();
+			}
 			try {
 				if (conn != null) {
 					conn.close();
 				}
 			} catch (SQLException ex) {
 				System.out.println(ex.getMessage());
+				status = FAILED;
 			}
 		}
+		return status;
 
 
 //		final String targetName = TestTarget.class.getName();
@@ -348,6 +207,253 @@ public final class Start {
 
 	}
 
+	private ExecutionDataStore loadExecutionData(final Options options) throws Exception {
+		if (options.exec.isEmpty()) {
+			return new ExecutionDataStore();
+		}
+		final long start = System.currentTimeMillis();
+		final List<File> files = ExecLoader.files(options.exec);
+		final ExecutionDataStore store = ExecLoader.load(files, options.threads);
+		this.out.println("Loaded " + files.size() + " exec files, " + store.getContents().size() + " classes in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return store;
+	}
+
+	/**
+	 * Updates the database every time class files change, until the process
+	 * is stopped. Only the changed class files are read and the JVM, JIT
+	 * compiled by the previous runs, is reused; each update is written in
+	 * one transaction. When events were lost, or an update failed and was
+	 * rolled back, the next update scans the whole tree.
+	 */
+	private void watch(final Connection conn, final ClassWatcher watcher, final File root, IncrementalIndex index,
+			final ExecutionDataStore executionData, final Options options) throws Exception {
+		final ClassFilter filter = options.filter();
+		final ClassFileWalker walker = new ClassFileWalker(options.walkThreads, !options.skipSymlinks, filter,
+				this.out);
+		boolean rescan = false;
+		this.out.println("Watching " + root + " for changes");
+		while (true) {
+			final Set<Path> changed = watcher.next();
+			final RunStats stats = new RunStats(this.out);
+			final boolean full = rescan || changed == null;
+			if (!full) {
+				index.keepUnchanged(changed);
+			}
+			final ParallelAnalyzer analyzer = new ParallelAnalyzer(executionData, options.threads, stats, index, false,
+					options.asm, null);
+			final SqliteWriter writer = new SqliteWriter(conn, options.batchSize, 0, stats);
+			try (ClassInputs inputs = full ? new ClassInputs(Collections.singletonList(root), walker, filter)
+					: new ClassInputs(root, changed, filter)) {
+				final ClassCollector collector = new ClassCollector(stats);
+				analyzer.analyze(inputs, collector);
+				index.apply(conn, writer, collector.getClasses(), stats, this.out);
+				writer.close();
+				stats.summary(this.out);
+				index = index.next();
+				rescan = false;
+			} catch (IOException | SQLException | RuntimeException e) {
+				// a class file may be half written, the next change brings it
+				this.out.println("Update failed, rolled back: " + e.getMessage());
+				writer.rollback();
+				index = IncrementalIndex.load(conn);
+				rescan = true;
+			}
+		}
+	}
+
+	/**
+	 * Analyzes the slice of <code>--shard</code> and writes it as a partial
+	 * result, see {@link PartialResults}.
+	 */
+	private int partial(final String path, final String sqlfile, final Options options,
+			final ExecutionDataStore executionData, final ClassFileWalker walker, final ClassFilter filter,
+			final RunStats stats) throws Exception {
+		new File(sqlfile).delete();
+		try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + sqlfile)) {
+			SqliteWriter.configure(conn, options);
+			try (Statement st = conn.createStatement()) {
+				runScript(st, "script-partial.sql");
+			}
+			final ClassCopies copies = new ClassCopies(options.countCopies);
+			final ParallelAnalyzer analyzer = new ParallelAnalyzer(executionData, options.threads, stats, null,
+					!options.exec.isEmpty(), options.asm, copies);
+			try (ClassInputs inputs = new ClassInputs(ClassInputs.roots(path), walker, filter);
+					SqliteWriter writer = new SqliteWriter(conn, options.batchSize, options.commitEvery, stats)) {
+				final Distributions distributions = new Distributions();
+				final MetricsRecorder recorder = new MetricsRecorder(distributions.observe(writer), stats);
+				record(analyzer, inputs, recorder, copies, options, stats);
+				recorder.finish(writer);
+				PartialResults.finish(writer, distributions, options.shard, options.shardCount, filter);
+			}
+		}
+		return report(stats, options, null);
+	}
+
+	/**
+	 * Merges the partial results of <code>--shard</code> into a new
+	 * database.
+	 */
+	void merge(final String sqlfile, final List<String> partials, final Options options) throws Exception {
+		Class.forName("org.sqlite.JDBC");
+		final List<File> files = new ArrayList<File>();
+		for (String partial : partials) {
+			files.add(new File(partial));
+		}
+		new File(sqlfile).delete();
+		try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + sqlfile)) {
+			SqliteWriter.configure(conn, options);
+			PartialResults.merge(conn, files, options.batchSize, new RunStats(), this.out);
+		}
+	}
+
+	/**
+	 * Writes the metric deltas between two builds, each given as a database
+	 * of this tool or as classes analyzed into a temporary one.
+	 */
+	void diff(final String older, final String newer, final String output, final Options options)
+			throws Exception {
+		if (!"sqlite".equals(options.format) && !"ndjson".equals(options.format)) {
+			throw new IllegalArgumentException("diff writes --format sqlite or ndjson");
+		}
+		if (options.shardCount > 0 || options.watch) {
+			throw new IllegalArgumentException("diff can't be combined with --shard or --watch");
+		}
+		Class.forName("org.sqlite.JDBC");
+		final boolean json = "ndjson".equals(options.format);
+		// the classes of a side are analyzed into a database
+		options.format = "sqlite";
+		final List<File> temporary = new ArrayList<File>();
+		try {
+			final File olderDb = database(older, options, temporary);
+			final File newerDb = database(newer, options, temporary);
+			final File work;
+			if (json) {
+				work = File.createTempFile("metrics-diff", ".db");
+				temporary.add(work);
+			} else {
+				work = new File(output);
+				work.delete();
+			}
+			final long started = System.nanoTime();
+			try (Connection o = DriverManager.getConnection("jdbc:sqlite:" + olderDb.getPath());
+					Connection n = DriverManager.getConnection("jdbc:sqlite:" + newerDb.getPath());
+					Connection w = DriverManager.getConnection("jdbc:sqlite:" + work.getPath())) {
+				SqliteWriter.configure(w, options);
+				final MetricsDiff diff = new MetricsDiff(o, n, w, options.batchSize, new RunStats());
+				diff.compare();
+				if (json) {
+					diff.writeJson(new File(output));
+				} else {
+					diff.writeTable();
+				}
+				this.out.printf("Diff: %d added, %d removed, %d changed, %d unchanged rows in %d ms%n", diff.added,
+						diff.removed, diff.changed, diff.unchanged, (System.nanoTime() - started) / 1000000);
+			}
+		} finally {
+			for (File file : temporary) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the given database, or a temporary one with the classes of
+	 *         the given path
+	 */
+	private File database(final String path, final Options options, final List<File> temporary) throws Exception {
+		final File file = new File(path);
+		if (MetricsDiff.isDatabase(file)) {
+			return file;
+		}
+		final List<File> roots = ClassInputs.roots(path);
+		boolean exists = !roots.isEmpty();
+		for (File root : roots) {
+			exists &= root.exists();
+		}
+		if (!exists) {
+			throw new IllegalArgumentException("diff needs a database or a path to parse: " + path);
+		}
+		final File db = File.createTempFile("metrics-diff", ".db");
+		temporary.add(db);
+		if (execute(path, db.getPath(), options) == FAILED) {
+			throw new IOException(String.format("Error while analyzing %s.", path));
+		}
+		return db;
+	}
+
+	/**
+	 * Analyzes the inputs and records every class, through the bounded queue
+	 * of <code>--stream</code>, after a first pass reading the class names,
+	 * or after the analysis in class name order. The other copies of
+	 * identical classes are recorded last, the caller then finishes the
+	 * recorder.
+	 */
+	private static void record(final ParallelAnalyzer analyzer, final ClassInputs inputs,
+			final MetricsRecorder recorder, final ClassCopies copies, final Options options, final RunStats stats)
+			throws Exception {
+		if (options.stream) {
+			// a class written can't be dropped for another with its name found later
+			analyzer.register(inputs);
+			try (StreamingWriter stream = new StreamingWriter(options.queueSize, recorder::record)) {
+				analyzer.analyze(inputs, stream);
+			}
+		} else {
+			final ClassCollector collector = new ClassCollector(stats, copies);
+			analyzer.analyze(inputs, collector);
+			for (final ClassMetrics cm : collector.getClasses()) {
+				recorder.record(cm);
+			}
+		}
+		copies.record(recorder, stats);
+	}
+
+	private static SourceLines sources(final Options options, final RunStats stats) {
+		if (options.sources.isEmpty()) {
+			return null;
+		}
+		final List<File> roots = new ArrayList<File>();
+		for (String dir : options.sources) {
+			final File root = new File(dir);
+			if (!root.isDirectory()) {
+				throw new IllegalArgumentException("--sources needs a directory: " + dir);
+			}
+			roots.add(root);
+		}
+		return new SourceLines(roots, options.threads, stats);
+	}
+
+	private static MetricsSink observe(final MetricsReport metrics, final MetricsSink sink) {
+		return metrics != null ? metrics.observe(sink) : sink;
+	}
+
+	/**
+	 * @return exit status of the run
+	 */
+	private int report(final RunStats stats, final Options options, final MetricsReport metrics) throws Exception {
+		stats.summary(this.out);
+		if (options.report != null) {
+			stats.writeJson(new File(options.report), options.threads);
+		}
+		if (metrics == null) {
+			return 0;
+		}
+		metrics.print(this.out);
+		if (options.summary != null) {
+			metrics.writeJson(new File(options.summary));
+		}
+		return metrics.passed() ? 0 : 1;
+	}
+
+	static void runScript(final Statement st, final String resource) throws Exception {
+		try (InputStream is = Start.class.getClassLoader().getResourceAsStream(resource) ) {
+			List<String> lines = IOUtils.readLines(is, "UTF-8");
+			for (String line : lines) {
+				st.execute(line);
+			}
+		}
+	}
+
 	private InputStream getTargetClass(final String name) {
 		final String resource = '/' + name.replace('.', '/') + ".class";
 		return getClass().getResourceAsStream(resource);
@@ -380,11 +486,31 @@ public final class Start {
 	 *             in case of errors
 	 */
 	public static void main(final String[] args) throws Exception {
-		if (args.length!=2) {
-			System.out.println("Error start with 2 arguments: java -jar metrics.jar <Path_to_parse> <db_output>");
+		final Options options;
+		try {
+			options = Options.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Error " + e.getMessage() + "\n" + Options.USAGE);
 			return;
 		}
-		new Start(System.out).execute(args[0],args[1]);
+		if (options.arguments.size() >= 3 && "merge".equals(options.arguments.get(0))) {
+			final List<String> partials = options.arguments.subList(2, options.arguments.size());
+			new Start(System.out).merge(options.arguments.get(1), partials, options);
+			return;
+		}
+		if (options.arguments.size() == 4 && "diff".equals(options.arguments.get(0))) {
+			new Start(System.out).diff(options.arguments.get(1), options.arguments.get(2), options.arguments.get(3),
+					options);
+			return;
+		}
+		if (options.arguments.size()!=2) {
+			System.out.println("Error start with 2 arguments: " + Options.USAGE);
+			return;
+		}
+		final int status = new Start(System.out).execute(options.arguments.get(0),options.arguments.get(1),options);
+		if (status != 0) {
+			System.exit(status);
+		}
 	}
 
 }
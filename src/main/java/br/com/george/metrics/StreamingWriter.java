@@ -0,0 +1,113 @@
+package br.com.george.metrics;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Visitor handing every analyzed class to a dedicated writer
+ * thread through a bounded queue. Analysis blocks while the queue is full, so
+ * at most <code>capacity</code> classes are held in memory and the SQLite
+ * writes overlap with the analysis.
+ * <p>
+ * Nothing is kept once a class is written: the classes are expected unique
+ * by name, the copies and the other versions of a class being dropped
+ * before by {@link ClassCopies}.
+ */
+final class StreamingWriter implements ClassMetricsVisitor, AutoCloseable {
+
+	/**
+	 * Receives the classes on the writer thread.
+	 */
+	interface Target {
+
+		void write(ClassMetrics cm) throws Exception;
+
+	}
+
+	private static final ClassMetrics END = new ClassMetrics(null, null, null, null, null, 0, 0, 0, 0, null, null, null);
+
+	private final BlockingQueue<ClassMetrics> queue;
+	private final Target target;
+	private final Thread thread;
+
+	private volatile Exception failure;
+
+	StreamingWriter(final int capacity, final Target target) {
+		this.queue = new ArrayBlockingQueue<ClassMetrics>(capacity);
+		this.target = target;
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "metrics-writer");
+		thread.start();
+	}
+
+	public void visit(final ClassMetrics cm) {
+		if (failure != null) {
+			throw new IllegalStateException("Writer failed", failure);
+		}
+		put(cm);
+	}
+
+	private void put(final ClassMetrics cm) {
+		try {
+			queue.put(cm);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while queueing " + cm.name, e);
+		}
+	}
+
+	private void drain() {
+		try {
+			ClassMetrics cm;
+			while ((cm = queue.take()) != END) {
+				if (failure != null) {
+					// keep draining so that analysis threads never block
+					continue;
+				}
+				try {
+					target.write(cm);
+				} catch (Exception e) {
+					failure = e;
+				}
+			}
+		} catch (InterruptedException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * Waits until every queued class is written.
+	 *
+	 * @throws IOException
+	 *             the first error raised by the target, wrapped if it is
+	 *             neither an I/O nor a SQL error
+	 */
+	@Override
+	public void close() throws IOException, SQLException {
+		put(END);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing classes", e);
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		if (failure instanceof SQLException) {
+			throw (SQLException) failure;
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure != null) {
+			throw new IOException(failure);
+		}
+	}
+
+}
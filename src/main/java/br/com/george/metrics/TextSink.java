@@ -0,0 +1,270 @@
+package br.com.george.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams the metric rows to one text file per table inside an output
+ * directory: method_metrics, class_metrics, package_metrics, file_metrics
+ * and class_locations, as CSV with a header line or as newline delimited
+ * JSON objects. The columns are the ones of the SQLite tables; a missing
+ * source file name is an empty CSV field or a JSON <code>null</code>.
+ * Rows are formatted into a buffer per table that is encoded and written
+ * through a {@link FileChannel} every {@link #BUFFER} characters.
+ */
+final class TextSink implements MetricsSink {
+
+	private static final int BUFFER = 1 << 16;
+
+	private final boolean json;
+	private final RunStats stats;
+	private final Table packages;
+	private final Table files;
+	private final Table classes;
+	private final Table methods;
+	private final Table locations;
+
+	/**
+	 * Creates the output directory and opens its files.
+	 *
+	 * @param dir
+	 *            output directory, existing files are replaced
+	 * @param json
+	 *            <code>true</code> for NDJSON, <code>false</code> for CSV
+	 * @param stats
+	 *            receives the time of every buffer written
+	 * @throws IOException
+	 *             if the files can't be created
+	 */
+	TextSink(final File dir, final boolean json, final RunStats stats) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create output directory " + dir);
+		}
+		this.json = json;
+		this.stats = stats;
+		final String ext = json ? ".ndjson" : ".csv";
+		// opened one by one so that the ones already open are closed on failure
+		Table packages = null, files = null, classes = null, methods = null, locations = null;
+		try {
+			packages = new Table(new File(dir, "package_metrics" + ext), "package", "metric", "value");
+			files = new Table(new File(dir, "file_metrics" + ext), "package", "file", "metric", "value");
+			classes = new Table(new File(dir, "class_metrics" + ext), "package", "file", "class", "metric", "value");
+			methods = new Table(new File(dir, "method_metrics" + ext), "package", "file", "class", "method",
+					"metric", "value");
+			locations = new Table(new File(dir, "class_locations" + ext), "package", "file", "class", "location");
+		} catch (IOException | RuntimeException e) {
+			closeAll(e, packages, files, classes, methods, locations);
+			throw e;
+		}
+		this.packages = packages;
+		this.files = files;
+		this.classes = classes;
+		this.methods = methods;
+		this.locations = locations;
+	}
+
+	public void insertPackage(final String pkg, final String metric, final double value) throws IOException {
+		packages.row(value, pkg, metric);
+	}
+
+	public void insertFile(final String pkg, final String file, final String metric, final double value)
+			throws IOException {
+		files.row(value, pkg, file, metric);
+	}
+
+	public void insertClass(final String pkg, final String file, final String cls, final String metric,
+			final double value) throws IOException {
+		classes.row(value, pkg, file, cls, metric);
+	}
+
+	public void insertMethod(final String pkg, final String file, final String cls, final String method,
+			final String metric, final double value) throws IOException {
+		methods.row(value, pkg, file, cls, method, metric);
+	}
+
+	public void insertLocation(final String pkg, final String file, final String cls, final String location)
+			throws IOException {
+		locations.row(Double.NaN, pkg, file, cls, location);
+	}
+
+	/**
+	 * Flushes and closes every file.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (Table table : new Table[] { packages, files, classes, methods, locations }) {
+			try {
+				table.drain();
+			} catch (IOException e) {
+				closeAll(e, packages, files, classes, methods, locations);
+				throw e;
+			}
+		}
+		closeAll(null, packages, files, classes, methods, locations);
+	}
+
+	private static void closeAll(final Throwable primary, final Table... tables) throws IOException {
+		IOException failure = null;
+		for (Table table : tables) {
+			if (table == null) {
+				continue;
+			}
+			try {
+				table.channel.close();
+			} catch (IOException e) {
+				if (primary != null) {
+					primary.addSuppressed(e);
+				} else if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Appends the given string as a JSON string, or <code>null</code>.
+	 */
+	static void jsonString(final StringBuilder out, final String s) {
+		if (s == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\');
+				out.append(c);
+			} else if (c < 0x20) {
+				out.append(String.format("\\u%04x", Integer.valueOf(c)));
+			} else {
+				out.append(c);
+			}
+		}
+		out.append('"');
+	}
+
+	/**
+	 * Appends a value the way SQLite prints a double: whole numbers without
+	 * fraction digits.
+	 */
+	static void value(final StringBuilder out, final double value) {
+		final long whole = (long) value;
+		if (whole == value) {
+			out.append(whole);
+		} else {
+			out.append(value);
+		}
+	}
+
+	private final class Table {
+
+		final FileChannel channel;
+		final String[] columns;
+		final StringBuilder out = new StringBuilder(BUFFER + 1024);
+
+		Table(final File file, final String... columns) throws IOException {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			this.columns = columns;
+			if (!json) {
+				for (int i = 0; i < columns.length; i++) {
+					if (i > 0) {
+						out.append(',');
+					}
+					out.append(columns[i]);
+				}
+				out.append('\n');
+			}
+		}
+
+		void drain() throws IOException {
+			if (out.length() == 0) {
+				return;
+			}
+			final long wall = System.nanoTime();
+			final long cpu = RunStats.cpuTime();
+			final ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(out));
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			out.setLength(0);
+			stats.since(RunStats.Phase.WRITE, wall, cpu);
+			stats.batchWrite.record(System.nanoTime() - wall);
+		}
+
+		/**
+		 * @param value
+		 *            value of the last column, {@link Double#NaN} when the
+		 *            table has no value column
+		 */
+		void row(final double value, final String... fields) throws IOException {
+			if (json) {
+				out.append('{');
+				for (int i = 0; i < fields.length; i++) {
+					if (i > 0) {
+						out.append(',');
+					}
+					out.append('"');
+					out.append(columns[i]);
+					out.append("\":");
+					jsonString(out, fields[i]);
+				}
+				if (fields.length < columns.length) {
+					out.append(",\"value\":");
+					value(out, value);
+				}
+				out.append("}\n");
+			} else {
+				for (int i = 0; i < fields.length; i++) {
+					if (i > 0) {
+						out.append(',');
+					}
+					csvField(fields[i]);
+				}
+				if (fields.length < columns.length) {
+					out.append(',');
+					value(out, value);
+				}
+				out.append('\n');
+			}
+			if (out.length() >= BUFFER) {
+				drain();
+			}
+		}
+
+		private void csvField(final String s) {
+			if (s == null) {
+				return;
+			}
+			boolean quote = false;
+			for (int i = 0; i < s.length() && !quote; i++) {
+				final char c = s.charAt(i);
+				quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+			}
+			if (!quote) {
+				out.append(s);
+				return;
+			}
+			out.append('"');
+			for (int i = 0; i < s.length(); i++) {
+				final char c = s.charAt(i);
+				if (c == '"') {
+					out.append('"');
+				}
+				out.append(c);
+			}
+			out.append('"');
+		}
+
+	}
+
+}
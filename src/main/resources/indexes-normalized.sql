@@ -0,0 +1,14 @@
+create unique index packages_name on packages(name);
+create unique index files_name on files(package_id, name);
+create unique index classes_name on classes(file_id, name);
+create unique index methods_name on methods(class_id, name);
+create unique index metrics_name on metrics(name);
+create unique index package_facts_key on package_facts(package_id, metric_id);
+create unique index file_facts_key on file_facts(file_id, metric_id);
+create unique index class_facts_key on class_facts(class_id, metric_id);
+create unique index method_facts_key on method_facts(method_id, metric_id);
+create unique index class_location_facts_key on class_location_facts(class_id, location);
+create index package_facts_metric on package_facts(metric_id, package_id, value);
+create index file_facts_metric on file_facts(metric_id, file_id, value);
+create index class_facts_metric on class_facts(metric_id, class_id, value);
+create index method_facts_metric on method_facts(metric_id, method_id, value);
@@ -0,0 +1,5 @@
+create unique index method_metrics_key on method_metrics(package,file,class,method, metric);
+create unique index class_metrics_key on class_metrics(package,file,class, metric);
+create unique index package_metrics_key on package_metrics(package, metric);
+create unique index file_metrics_key on file_metrics(package,file, metric);
+create unique index class_locations_key on class_locations(package,file,class, location);
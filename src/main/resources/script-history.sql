@@ -0,0 +1,9 @@
+create table runs( run integer PRIMARY KEY, commit_id varchar, timestamp integer);
+create table package_history( package varchar, metric varchar, valid_from integer, valid_to integer, value double,PRIMARY KEY (package, metric, valid_from));
+create table file_history( package varchar, file varchar, metric varchar, valid_from integer, valid_to integer, value double,PRIMARY KEY (package, file, metric, valid_from));
+create table class_history( package varchar, file varchar, class varchar, metric varchar, valid_from integer, valid_to integer, value double,PRIMARY KEY (package, file, class, metric, valid_from));
+create table method_history( package varchar, file varchar, class varchar, method varchar, metric varchar, valid_from integer, valid_to integer, value double,PRIMARY KEY (package, file, class, method, metric, valid_from));
+create view package_metrics_at as select r.run, r.commit_id, h.package, h.metric, h.value from runs r join package_history h on h.valid_from <= r.run and (h.valid_to is null or h.valid_to > r.run);
+create view file_metrics_at as select r.run, r.commit_id, h.package, h.file, h.metric, h.value from runs r join file_history h on h.valid_from <= r.run and (h.valid_to is null or h.valid_to > r.run);
+create view class_metrics_at as select r.run, r.commit_id, h.package, h.file, h.class, h.metric, h.value from runs r join class_history h on h.valid_from <= r.run and (h.valid_to is null or h.valid_to > r.run);
+create view method_metrics_at as select r.run, r.commit_id, h.package, h.file, h.class, h.method, h.metric, h.value from runs r join method_history h on h.valid_from <= r.run and (h.valid_to is null or h.valid_to > r.run);
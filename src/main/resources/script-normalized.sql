@@ -0,0 +1,17 @@
+create table packages( id integer primary key, name varchar);
+create table files( id integer primary key, package_id integer, name varchar);
+create table classes( id integer primary key, file_id integer, name varchar);
+create table methods( id integer primary key, class_id integer, name varchar);
+create table metrics( id integer primary key, name varchar);
+create table package_facts( package_id integer, metric_id integer, value double);
+create table file_facts( file_id integer, metric_id integer, value double);
+create table class_facts( class_id integer, metric_id integer, value double);
+create table method_facts( method_id integer, metric_id integer, value double);
+create table class_location_facts( class_id integer, location varchar);
+create view method_metrics as select p.name as package, f.name as file, c.name as class, m.name as method, k.name as metric, x.value as value from method_facts x join methods m on m.id = x.method_id join classes c on c.id = m.class_id join files f on f.id = c.file_id join packages p on p.id = f.package_id join metrics k on k.id = x.metric_id;
+create view class_metrics as select p.name as package, f.name as file, c.name as class, k.name as metric, x.value as value from class_facts x join classes c on c.id = x.class_id join files f on f.id = c.file_id join packages p on p.id = f.package_id join metrics k on k.id = x.metric_id;
+create view package_metrics as select p.name as package, k.name as metric, x.value as value from package_facts x join packages p on p.id = x.package_id join metrics k on k.id = x.metric_id;
+create view file_metrics as select p.name as package, f.name as file, k.name as metric, x.value as value from file_facts x join files f on f.id = x.file_id join packages p on p.id = f.package_id join metrics k on k.id = x.metric_id;
+create view class_locations as select p.name as package, f.name as file, c.name as class, x.location as location from class_location_facts x join classes c on c.id = x.class_id join files f on f.id = c.file_id join packages p on p.id = f.package_id;
+create table metric_distributions( level varchar, metric varchar, count integer, min double, max double, mean double, p50 double, p90 double, p99 double,PRIMARY KEY (level, metric));
+create table metric_distribution_bins( level varchar, metric varchar, lower double, upper double, count integer,PRIMARY KEY (level, metric, lower));
@@ -0,0 +1,6 @@
+create table method_metrics( package varchar, file varchar ,class varchar, method varchar , metric varchar, value double);
+create table class_metrics( package varchar,  file varchar , class varchar ,metric varchar, value  double);
+create table class_locations( package varchar, file varchar, class varchar, location varchar);
+create table rollup_cells( level varchar, package varchar, file varchar, metric varchar, max integer, value double);
+create table metric_sketches( package varchar, level varchar, metric varchar, sketch blob);
+create table partial_info( shard integer, shards integer, version integer, classes integer, kept integer);
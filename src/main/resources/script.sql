@@ -1,4 +1,7 @@
 create table method_metrics( package varchar, file varchar ,class varchar, method varchar , metric varchar, value double,PRIMARY KEY (package,file,class,method, metric));
 create table class_metrics( package varchar,  file varchar , class varchar ,metric varchar, value  double,PRIMARY KEY (package,file,class, metric));
 create table package_metrics( package varchar, metric varchar, value  double,PRIMARY KEY (package, metric));
-create table file_metrics( package varchar,file varchar, metric varchar, value double,PRIMARY KEY (file, metric));
+create table file_metrics( package varchar,file varchar, metric varchar, value double,PRIMARY KEY (package,file, metric));
+create table class_locations( package varchar, file varchar, class varchar, location varchar,PRIMARY KEY (package,file,class, location));
+create table metric_distributions( level varchar, metric varchar, count integer, min double, max double, mean double, p50 double, p90 double, p99 double,PRIMARY KEY (level, metric));
+create table metric_distribution_bins( level varchar, metric varchar, lower double, upper double, count integer,PRIMARY KEY (level, metric, lower));
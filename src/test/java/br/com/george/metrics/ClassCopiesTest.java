@@ -0,0 +1,143 @@
+package br.com.george.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Different classes with the same name and copies of them, spread over the
+ * class trees of a directory: the class kept, and so the output, must not
+ * depend on the number of threads or on <code>--stream</code>. The same
+ * holds for several input paths and the archives found in them.
+ */
+public class ClassCopiesTest {
+
+	private static final int CLASSES = 40;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void should_keep_the_same_classes_whatever_the_threads() throws Exception {
+		final File input = folder.newFolder("input");
+		// the version of two methods comes first in path order, its copy last
+		write(new File(input, "a"), 2);
+		write(new File(input, "b"), 1);
+		write(new File(input, "c"), 2);
+		final List<String> expected = run(input.getPath(), "1", false);
+		for (String threads : new String[] { "2", "4", "8" }) {
+			for (boolean stream : new boolean[] { false, true }) {
+				for (int i = 0; i < 3; i++) {
+					assertEquals(threads + (stream ? " --stream" : ""), expected, run(input.getPath(), threads, stream));
+				}
+			}
+		}
+		assertEquals(expected, run(input.getPath(), "1", true));
+		assertTrue(expected.toString(), expected.contains(
+				"{\"package\":\"p\",\"file\":\"C0.java\",\"class\":\"p/C0\",\"metric\":\"CountDeclMethod\",\"value\":2}"));
+	}
+
+	@Test
+	public void should_read_the_archives_of_several_paths() throws Exception {
+		final File classes = folder.newFolder("classes");
+		write(classes, 2);
+		final File libs = new File(folder.newFolder("module"), "libs");
+		final File tree = folder.newFolder("tree");
+		write(tree, 1);
+		jar(tree, new File(libs, "b.jar"));
+		final String path = classes.getPath() + File.pathSeparator + libs.getParent();
+		final List<String> expected = run(path, "1", false);
+		for (String threads : new String[] { "2", "4" }) {
+			assertEquals(expected, run(path, threads, true));
+		}
+		// a path given twice is read once
+		assertEquals(expected, run(path + File.pathSeparator + classes.getPath(), "4", false));
+		assertTrue(expected.toString(), expected.contains(
+				"{\"package\":\"p\",\"file\":\"C0.java\",\"class\":\"p/C0\",\"metric\":\"CountDeclMethod\",\"value\":2}"));
+		assertTrue(expected.toString(), expected.contains("{\"package\":\"p\",\"file\":\"C0.java\",\"class\":\"p/C0\","
+				+ "\"location\":\"" + new File(libs, "b.jar").getAbsolutePath() + "\"}"));
+	}
+
+	private List<String> run(final String input, final String threads, final boolean stream) throws Exception {
+		final File output = new File(folder.getRoot(), "output");
+		if (output.isDirectory()) {
+			for (File file : output.listFiles()) {
+				file.delete();
+			}
+		}
+		final List<String> args = new ArrayList<String>();
+		Collections.addAll(args, "--threads", threads, "--format", "ndjson");
+		if (stream) {
+			args.add("--stream");
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(0, new Start(new PrintStream(out, true, "UTF-8")).execute(input, output.getPath(),
+				Options.parse(args.toArray(new String[0]))));
+		assertTrue(out.toString("UTF-8").contains("Skipped " + CLASSES + " different classes"));
+		final List<String> lines = new ArrayList<String>();
+		for (String table : new String[] { "class_metrics", "method_metrics", "class_locations", "package_metrics",
+				"file_metrics" }) {
+			lines.addAll(Files.readAllLines(new File(output, table + ".ndjson").toPath(), StandardCharsets.UTF_8));
+		}
+		Collections.sort(lines);
+		return lines;
+	}
+
+	/**
+	 * Writes the class files of a tree into a jar.
+	 */
+	private static void jar(final File root, final File jar) throws IOException {
+		jar.getParentFile().mkdirs();
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+			for (File file : new File(root, "p").listFiles()) {
+				out.putNextEntry(new ZipEntry("p/" + file.getName()));
+				out.write(Files.readAllBytes(file.toPath()));
+				out.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Writes a class tree whose classes have the given number of methods.
+	 */
+	private static void write(final File root, final int methods) throws IOException {
+		final File pkg = new File(root, "p");
+		pkg.mkdirs();
+		for (int i = 0; i < CLASSES; i++) {
+			final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+			cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "p/C" + i, null, "java/lang/Object", null);
+			cw.visitSource("C" + i + ".java", null);
+			for (int m = 0; m < methods; m++) {
+				final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "m" + m, "()I",
+						null, null);
+				mv.visitCode();
+				mv.visitInsn(Opcodes.ICONST_0);
+				mv.visitInsn(Opcodes.IRETURN);
+				mv.visitMaxs(0, 0);
+				mv.visitEnd();
+			}
+			cw.visitEnd();
+			Files.write(new File(pkg, "C" + i + ".class").toPath(), cw.toByteArray());
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+package br.com.george.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * The glob automaton of {@link ClassFilter}, checked on examples and against
+ * a backtracking matcher of the same patterns.
+ */
+public class ClassFilterTest {
+
+	private static final String[] PATTERNS = { "com.acme.**", "**.*Dto", "com.*.proto.**", "**", "com.acme.Foo",
+			"**.gen.**", "a?.**", "com/acme/*", "**.a*.b", "org.**.Bar", "*.Foo" };
+
+	private static final String[] SEGMENTS = { "com", "acme", "proto", "gen", "a", "ab", "b", "org" };
+
+	private static final String[] CLASSES = { "Foo", "FooDto", "Bar", "b", "Foo$Inner", "FooDto$1", "Bar$Dto" };
+
+	@Test
+	public void should_match_segments_with_star_and_question_mark() {
+		assertTrue(ClassFilter.matches("*", ""));
+		assertTrue(ClassFilter.matches("*Dto", "FooDto"));
+		assertTrue(ClassFilter.matches("F?o*", "Foo$1"));
+		assertTrue(ClassFilter.matches("*o*o*", "Foo"));
+		assertFalse(ClassFilter.matches("*Dto", "FooDtos"));
+		assertFalse(ClassFilter.matches("F?o", "Fo"));
+		assertFalse(ClassFilter.matches("Foo", "foo"));
+	}
+
+	@Test
+	public void should_keep_included_classes_not_excluded() {
+		final ClassFilter filter = filter(Arrays.asList("com.acme.**"), Arrays.asList("**.*Dto"));
+		assertTrue(filter.accepts("com/acme/Foo"));
+		assertTrue(filter.accepts("com/acme/deep/er/Foo"));
+		assertFalse(filter.accepts("com/acme/FooDto"));
+		assertFalse(filter.accepts("com/other/Foo"));
+		assertFalse(filter.accepts("Foo"));
+	}
+
+	@Test
+	public void should_keep_nested_classes_with_their_top_level_class() {
+		final ClassFilter filter = filter(Arrays.asList("com.acme.Foo"), Collections.<String> emptyList());
+		assertTrue(filter.accepts("com/acme/Foo$Inner"));
+		assertTrue(filter.accepts("com/acme/Foo$1"));
+		assertFalse(filter.accepts("com/acme/FooBar"));
+		assertFalse(filter(Arrays.asList("**"), Arrays.asList("**.*Dto")).accepts("com/FooDto$1"));
+	}
+
+	@Test
+	public void should_prune_packages_without_kept_classes() {
+		final ClassFilter filter = filter(Arrays.asList("com.acme.**"), Arrays.asList("com.acme.gen.**"));
+		final ClassFilter.State com = filter.start().enter("com");
+		assertFalse(filter.start().pruned());
+		assertFalse(com.pruned());
+		assertTrue(filter.start().enter("org").pruned());
+		assertTrue(com.enter("other").pruned());
+		assertFalse(com.enter("acme").pruned());
+		assertTrue(com.enter("acme").enter("gen").pruned());
+		assertFalse(com.enter("acme").enter("generated").pruned());
+	}
+
+	@Test
+	public void should_not_prune_without_include() {
+		final ClassFilter filter = filter(Collections.<String> emptyList(), Arrays.asList("**.*Dto"));
+		assertFalse(filter.start().enter("any").enter("package").pruned());
+		assertTrue(filter.accepts("any/package/Foo"));
+	}
+
+	@Test
+	public void should_reject_invalid_patterns() {
+		for (String pattern : new String[] { "", ".com", "com.", "com..acme", "/com" }) {
+			try {
+				filter(Arrays.asList(pattern), Collections.<String> emptyList());
+				fail(pattern);
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void should_decide_like_a_backtracking_matcher() {
+		final Random random = new Random(1);
+		for (int run = 0; run < 500; run++) {
+			final List<String> include = patterns(random);
+			final List<String> exclude = patterns(random);
+			final ClassFilter filter = filter(include, exclude);
+			for (int n = 0; n < 50; n++) {
+				final String name = className(random);
+				assertEquals(include + " " + exclude + " " + name, expected(include, exclude, name),
+						filter.accepts(name));
+			}
+		}
+	}
+
+	private static ClassFilter filter(final List<String> include, final List<String> exclude) {
+		return new ClassFilter(include, exclude);
+	}
+
+	private static List<String> patterns(final Random random) {
+		final List<String> patterns = new ArrayList<String>();
+		for (int i = random.nextInt(3); i > 0; i--) {
+			patterns.add(PATTERNS[random.nextInt(PATTERNS.length)]);
+		}
+		return patterns;
+	}
+
+	private static String className(final Random random) {
+		final StringBuilder name = new StringBuilder();
+		for (int i = random.nextInt(4); i > 0; i--) {
+			name.append(SEGMENTS[random.nextInt(SEGMENTS.length)]).append('/');
+		}
+		return name.append(CLASSES[random.nextInt(CLASSES.length)]).toString();
+	}
+
+	private static boolean expected(final List<String> include, final List<String> exclude, final String name) {
+		return (include.isEmpty() || matchesAny(include, name)) && !matchesAny(exclude, name);
+	}
+
+	private static boolean matchesAny(final List<String> patterns, final String name) {
+		final int start = name.lastIndexOf('/') + 1;
+		final int dollar = name.indexOf('$', start);
+		for (String pattern : patterns) {
+			final String[] segments = pattern.replace('.', '/').split("/");
+			if (matches(segments, 0, name.split("/"), 0)
+					|| dollar > start && matches(segments, 0, name.substring(0, dollar).split("/"), 0)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(final String[] pattern, final int p, final String[] name, final int n) {
+		if (p == pattern.length) {
+			return n == name.length;
+		}
+		if ("**".equals(pattern[p])) {
+			return matches(pattern, p + 1, name, n) || n < name.length && matches(pattern, p, name, n + 1);
+		}
+		return n < name.length && name[n].matches(regex(pattern[p])) && matches(pattern, p + 1, name, n + 1);
+	}
+
+	private static String regex(final String glob) {
+		final StringBuilder regex = new StringBuilder();
+		for (char c : glob.toCharArray()) {
+			if (c == '*') {
+				regex.append(".*");
+			} else if (c == '?') {
+				regex.append('.');
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return regex.toString();
+	}
+
+}
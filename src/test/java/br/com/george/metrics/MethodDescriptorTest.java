@@ -0,0 +1,59 @@
+package br.com.george.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+/**
+ * {@link MethodDescriptor#scan(String)} against the descriptors parsed by
+ * ASM, and its errors on malformed descriptors.
+ */
+public class MethodDescriptorTest {
+
+	private static final String[] DESCRIPTORS = { "()V", "(I)I", "(J)J", "(D)V", "(JD)Z", "([J)V", "([[D)[D",
+			"(Ljava/lang/String;)Ljava/lang/Object;", "(BCSIFZ)C", "([Ljava/lang/String;JI)V",
+			"(Ljava/util/Map$Entry;[[Ljava/lang/Object;D)[[I", "(La;Lb;Lc;)La;" };
+
+	@Test
+	public void should_count_parameters_and_slots_like_asm() {
+		for (String desc : DESCRIPTORS) {
+			final long scan = MethodDescriptor.scan(desc);
+			final Type[] arguments = Type.getArgumentTypes(desc);
+			// the size of the arguments counts the receiver
+			final int slots = (Type.getArgumentsAndReturnSizes(desc) >> 2) - 1;
+			assertEquals(desc, arguments.length, MethodDescriptor.paramCount(scan));
+			assertEquals(desc, slots, MethodDescriptor.slotCount(scan));
+			assertEquals(desc, Type.getReturnType(desc).getDescriptor().charAt(0),
+					MethodDescriptor.returnType(scan));
+		}
+	}
+
+	@Test
+	public void should_give_two_slots_to_long_and_double_but_one_to_their_arrays() {
+		assertEquals(4, MethodDescriptor.slotCount(MethodDescriptor.scan("(JD)V")));
+		assertEquals(2, MethodDescriptor.slotCount(MethodDescriptor.scan("([J[D)V")));
+	}
+
+	@Test
+	public void should_share_interned_descriptors_and_keys() {
+		final MethodDescriptor descriptor = MethodDescriptor.intern("(I)V");
+		assertSame(descriptor, MethodDescriptor.intern(new String("(I)V")));
+		assertEquals("run (I)V", descriptor.key("run"));
+		assertSame(descriptor.key("run"), descriptor.key(new String("run")));
+	}
+
+	@Test
+	public void should_reject_malformed_descriptors() {
+		for (String desc : new String[] { "", "V", "I)V", "(I", "(I)", "([)V", "(Ljava/lang/String)V", "(X)V" }) {
+			try {
+				MethodDescriptor.scan(desc);
+				fail(desc);
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package br.com.george.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The collation of {@link MetricsDiff#compare(String, String)}, which must
+ * order the keys as SQLite returns them for the merge join of the diff,
+ * checked on examples and against an ORDER BY of the driver.
+ */
+public class MetricsDiffTest {
+
+	/** ASCII, NUL, Latin-1, a character above the surrogates and one outside the basic plane */
+	private static final String[] CHARACTERS = { "a", "b", "B", "$", "/", "\0", "\u007f", "\u0080", "\u00e7",
+			"\uFF21", "\uD83D\uDE00" };
+
+	private static final Comparator<String> COLLATION = new Comparator<String>() {
+		public int compare(final String a, final String b) {
+			return MetricsDiff.compare(a, b);
+		}
+	};
+
+	@Test
+	public void should_order_null_first() {
+		assertEquals(0, MetricsDiff.compare(null, null));
+		assertTrue(MetricsDiff.compare(null, "") < 0);
+		assertTrue(MetricsDiff.compare("", null) > 0);
+	}
+
+	@Test
+	public void should_order_prefixes_first() {
+		assertEquals(0, MetricsDiff.compare("com/acme", "com/acme"));
+		assertTrue(MetricsDiff.compare("com/acme", "com/acme/gen") < 0);
+		assertTrue(MetricsDiff.compare("", "a") < 0);
+	}
+
+	@Test
+	public void should_order_by_utf16_unit() {
+		// the driver writes each surrogate on its own, below U+FF21 as in UTF-16
+		assertTrue(MetricsDiff.compare("\uD83D\uDE00", "\uFF21") < 0);
+		assertTrue(MetricsDiff.compare("x\uFF21", "x\uD83D\uDE00") > 0);
+		assertTrue(MetricsDiff.compare("\uD7FF", "\uD83D\uDE00") < 0);
+		assertTrue(MetricsDiff.compare("B", "a") < 0);
+		assertTrue(MetricsDiff.compare("\u00e7", "z") > 0);
+	}
+
+	@Test
+	public void should_order_nul_as_its_two_bytes() {
+		assertTrue(MetricsDiff.compare("a\0", "a\u007f") > 0);
+		assertTrue(MetricsDiff.compare("a\0", "a\u0080") < 0);
+		assertTrue(MetricsDiff.compare("a", "a\0") < 0);
+	}
+
+	@Test
+	public void should_order_like_sqlite() throws Exception {
+		final Random random = new Random(1);
+		final List<String> values = new ArrayList<String>();
+		values.add(null);
+		for (int i = 0; i < 500; i++) {
+			final StringBuilder sb = new StringBuilder();
+			for (int n = random.nextInt(5); n > 0; n--) {
+				sb.append(CHARACTERS[random.nextInt(CHARACTERS.length)]);
+			}
+			values.add(sb.toString());
+		}
+		Class.forName("org.sqlite.JDBC");
+		final List<String> ordered = new ArrayList<String>();
+		try (Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+				Statement st = conn.createStatement()) {
+			st.execute("create table t( value varchar)");
+			try (PreparedStatement insert = conn.prepareStatement("INSERT INTO t (value) VALUES (?)")) {
+				for (String value : values) {
+					insert.setString(1, value);
+					insert.executeUpdate();
+				}
+			}
+			try (ResultSet rs = st.executeQuery("SELECT value FROM t ORDER BY value")) {
+				while (rs.next()) {
+					ordered.add(rs.getString(1));
+				}
+			}
+		}
+		Collections.sort(values, COLLATION);
+		assertEquals(Arrays.asList(values.toArray()), ordered);
+	}
+
+}
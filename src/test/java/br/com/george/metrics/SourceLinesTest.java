@@ -0,0 +1,86 @@
+package br.com.george.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * The lexer of {@link SourceLines}: physical, comment and blank lines of
+ * small sources.
+ */
+public class SourceLinesTest {
+
+	private final SourceLines.Lexer lexer = new SourceLines.Lexer();
+
+	@Test
+	public void should_count_nothing_in_an_empty_source() {
+		assertCount("", 0, 0, 0);
+	}
+
+	@Test
+	public void should_count_blank_lines() {
+		assertCount("class A {\n\n \t\n}\n", 4, 0, 2);
+	}
+
+	@Test
+	public void should_count_line_comments_with_or_without_code() {
+		assertCount("// c\nint a; // c\nint b;\n", 3, 2, 0);
+	}
+
+	@Test
+	public void should_count_block_comments_without_their_blank_lines() {
+		assertCount("/*\n * x\n\n */\nint a; /* c */ int b;\n", 5, 4, 1);
+	}
+
+	@Test
+	public void should_count_a_line_without_terminator() {
+		assertCount("int a;\n// c", 2, 1, 0);
+		assertCount("a = b /", 1, 0, 0);
+	}
+
+	@Test
+	public void should_accept_every_line_terminator() {
+		assertCount("a;\r\n\r\nb;\rc;\n", 4, 0, 1);
+	}
+
+	@Test
+	public void should_skip_comment_delimiters_in_literals() {
+		assertCount("String s = \"/* no */\";\nchar c = '\"'; char d = '\\'';\nString t = \"\\\"//\";\n", 3, 0, 0);
+	}
+
+	@Test
+	public void should_count_the_lines_of_text_blocks_as_code() {
+		assertCount("String s = \"\"\"\n  /* text\n\n  \\\"\"\" \"\"\";\n// c\n", 5, 1, 0);
+	}
+
+	@Test
+	public void should_translate_unicode_escapes() {
+		// the escaped star and slash end the comment, int a; is code
+		assertCount("/* x \\u002a/ int a;\n\nint b;\n", 3, 1, 1);
+		// the escaped line feed ends the line comment but not the physical line, a block comment follows
+		assertCount("// x \\u000a /* c\nint b; */\n", 2, 2, 0);
+		// an escaped backslash is not the start of an escape, the string ends at the last quote
+		assertCount("String s = \"\\\\u0022\"; // c\n", 1, 1, 0);
+	}
+
+	@Test
+	public void should_skip_a_byte_order_mark() {
+		final byte[] source = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF, '\n', '/', '/', '\n' };
+		assertArrayEquals(new int[] { 2, 1, 1 }, lexer.count(ByteBuffer.wrap(source)));
+	}
+
+	@Test
+	public void should_reset_between_sources() {
+		assertCount("/* open\n", 1, 1, 0);
+		assertCount("int a;\n", 1, 0, 0);
+	}
+
+	private void assertCount(final String source, final int lines, final int comment, final int blank) {
+		final ByteBuffer buf = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+		assertArrayEquals(source, new int[] { lines, comment, blank }, lexer.count(buf));
+	}
+
+}